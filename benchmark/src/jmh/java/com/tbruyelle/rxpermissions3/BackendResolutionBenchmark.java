@@ -0,0 +1,63 @@
+package com.tbruyelle.rxpermissions3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures the resolution of the backend done on each access of the request path, by threads
+ * sharing the same {@code RxPermissions} instance.
+ * <p>
+ * {@code synchronizedGet} is the former holder, locking on every access, and
+ * {@code publishOnceGet} the {@link PublishOnceLazy} which replaced it.
+ */
+@State(Scope.Benchmark)
+@Threads(8)
+public class BackendResolutionBenchmark {
+
+    private final Object mBackend = new Object();
+
+    private final SynchronizedLazy mSynchronizedLazy = new SynchronizedLazy();
+
+    private final PublishOnceLazy<Object> mPublishOnceLazy = new PublishOnceLazy<Object>() {
+        @Override
+        Object create() {
+            return mBackend;
+        }
+    };
+
+    @Benchmark
+    public Object synchronizedGet() {
+        return mSynchronizedLazy.get();
+    }
+
+    @Benchmark
+    public Object publishOnceGet() {
+        return mPublishOnceLazy.get();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object synchronizedGetUncontended() {
+        return mSynchronizedLazy.get();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object publishOnceGetUncontended() {
+        return mPublishOnceLazy.get();
+    }
+
+    private class SynchronizedLazy {
+
+        private Object mValue;
+
+        synchronized Object get() {
+            if (mValue == null) {
+                mValue = mBackend;
+            }
+            return mValue;
+        }
+    }
+}
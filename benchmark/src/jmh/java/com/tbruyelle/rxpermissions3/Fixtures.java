@@ -0,0 +1,65 @@
+package com.tbruyelle.rxpermissions3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+final class Fixtures {
+
+    static final String GRANTED = "granted";
+    static final String REVOKED = "revoked";
+    static final String PENDING = "pending";
+    static final String MIXED = "mixed";
+
+    private static final int[] MIXED_BEHAVIORS = {
+            PermissionSimulator.GRANTED, PermissionSimulator.REVOKED, PermissionSimulator.DENY};
+
+    private Fixtures() {
+    }
+
+    static String[] permissions(int count) {
+        String[] permissions = new String[count];
+        for (int i = 0; i < count; i++) {
+            permissions[i] = "android.permission.BENCHMARK_" + i;
+        }
+        return permissions;
+    }
+
+    /**
+     * Returns a simulator with the permissions in the given states, {@link #MIXED} cycles through
+     * granted, revoked and pending. Pending permissions are denied when answered, so they stay
+     * pending from one iteration to the next.
+     */
+    static PermissionSimulator simulator(String[] permissions, String mode) {
+        PermissionSimulator simulator = new PermissionSimulator(PermissionSimulator.DENY);
+        for (int i = 0; i < permissions.length; i++) {
+            simulator.setBehavior(permissions[i], behavior(i, mode));
+        }
+        return simulator;
+    }
+
+    private static int behavior(int index, String mode) {
+        switch (mode) {
+            case GRANTED:
+                return PermissionSimulator.GRANTED;
+            case REVOKED:
+                return PermissionSimulator.REVOKED;
+            case PENDING:
+                return PermissionSimulator.DENY;
+            case MIXED:
+                return MIXED_BEHAVIORS[index % MIXED_BEHAVIORS.length];
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+    }
+
+    static List<Permission> results(String[] permissions, String mode) {
+        List<Permission> results = new ArrayList<>(permissions.length);
+        for (int i = 0; i < permissions.length; i++) {
+            int behavior = behavior(i, mode);
+            results.add(new Permission(permissions[i],
+                    behavior == PermissionSimulator.GRANTED,
+                    behavior == PermissionSimulator.DENY));
+        }
+        return results;
+    }
+}
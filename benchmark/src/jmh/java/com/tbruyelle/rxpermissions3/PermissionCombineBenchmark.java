@@ -0,0 +1,41 @@
+package com.tbruyelle.rxpermissions3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Measures the aggregation done for each {@code ensureEachCombined} emission.
+ */
+@State(Scope.Thread)
+public class PermissionCombineBenchmark {
+
+    @Param({"1", "5", "50"})
+    public int permissionCount;
+
+    @Param({Fixtures.GRANTED, Fixtures.MIXED})
+    public String states;
+
+    private List<Permission> mResults;
+    private String mCombinedName;
+
+    @Setup
+    public void setup() {
+        mResults = Fixtures.results(Fixtures.permissions(permissionCount), states);
+        mCombinedName = Permission.combineName(mResults);
+    }
+
+    @Benchmark
+    public Permission constructor() {
+        return new Permission(mResults);
+    }
+
+    @Benchmark
+    public Permission combineWithCachedName() {
+        return Permission.combine(mCombinedName, mResults);
+    }
+}
@@ -0,0 +1,75 @@
+package com.tbruyelle.rxpermissions3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.core.ObservableTransformer;
+
+/**
+ * Measures one trigger emission going through the request pipelines, the path taken on every
+ * click of an {@code ensure}-composed view.
+ * <p>
+ * Run with {@code ./gradlew :benchmark:jmh}, the gc profiler reports the allocation rate.
+ */
+@State(Scope.Thread)
+public class RequestPipelineBenchmark {
+
+    @Param({"1", "5", "50"})
+    public int permissionCount;
+
+    @Param({Fixtures.GRANTED, Fixtures.REVOKED, Fixtures.PENDING, Fixtures.MIXED})
+    public String states;
+
+    private PermissionSimulator mRxPermissions;
+    private String[] mPermissions;
+    private Observable<Object> mTrigger;
+    private ObservableTransformer<Object, Boolean> mEnsure;
+    private ObservableTransformer<Object, Permission> mEnsureEach;
+    private ObservableTransformer<Object, Permission> mEnsureEachCombined;
+
+    @Setup
+    public void setup() {
+        mPermissions = Fixtures.permissions(permissionCount);
+        mRxPermissions = Fixtures.simulator(mPermissions, states);
+        mTrigger = Observable.just(BaseRxPermissions.TRIGGER);
+        // Transformers are built once, like an app composing them in onCreate
+        mEnsure = mRxPermissions.ensure(mPermissions);
+        mEnsureEach = mRxPermissions.ensureEach(mPermissions);
+        mEnsureEachCombined = mRxPermissions.ensureEachCombined(mPermissions);
+    }
+
+    @Benchmark
+    public void ensure(Blackhole bh) {
+        mTrigger.compose(mEnsure).subscribe(bh::consume);
+        mRxPermissions.answerPendingRequests();
+    }
+
+    @Benchmark
+    public void ensureEach(Blackhole bh) {
+        mTrigger.compose(mEnsureEach).subscribe(bh::consume);
+        mRxPermissions.answerPendingRequests();
+    }
+
+    @Benchmark
+    public void ensureEachCombined(Blackhole bh) {
+        mTrigger.compose(mEnsureEachCombined).subscribe(bh::consume);
+        mRxPermissions.answerPendingRequests();
+    }
+
+    @Benchmark
+    public void requestSingle(Blackhole bh) {
+        mRxPermissions.requestSingle(mPermissions).subscribe(bh::consume);
+        mRxPermissions.answerPendingRequests();
+    }
+
+    @Benchmark
+    public void requestImplementation(Blackhole bh) {
+        mRxPermissions.requestImplementation(BaseRxPermissions.PRIORITY_USER_INITIATED, mPermissions).subscribe(bh::consume);
+        mRxPermissions.answerPendingRequests();
+    }
+}
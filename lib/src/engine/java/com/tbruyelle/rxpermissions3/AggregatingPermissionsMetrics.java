@@ -0,0 +1,185 @@
+package com.tbruyelle.rxpermissions3;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link PermissionsMetrics} aggregating the events into counters and latency histograms.
+ * <p>
+ * Use one instance per screen to compare them. The check latency measures the calls to the
+ * package manager, and the decision latency the time between the dialog and the result.
+ */
+public class AggregatingPermissionsMetrics implements PermissionsMetrics {
+
+    private final AtomicLong mCheckCount = new AtomicLong();
+    private final AtomicLong mCacheHitCount = new AtomicLong();
+    private final AtomicLong mSubjectCreatedCount = new AtomicLong();
+    private final AtomicLong mSubjectReusedCount = new AtomicLong();
+    private final AtomicLong mDialogCount = new AtomicLong();
+    private final AtomicLong mResultCount = new AtomicLong();
+    private final Histogram mCheckLatency = new Histogram();
+    private final Histogram mDecisionLatency = new Histogram();
+
+    // The checks are synchronous and don't nest, so one start time per thread is enough.
+    private final ThreadLocal<long[]> mCheckStart = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+    private final ConcurrentHashMap<String, Long> mDispatchTimes = new ConcurrentHashMap<>();
+
+    @Override
+    public void onCheckStarted(String permission, int check, long timeNanos) {
+        mCheckStart.get()[0] = timeNanos;
+    }
+
+    @Override
+    public void onCheckFinished(String permission, int check, boolean result, long timeNanos) {
+        mCheckCount.incrementAndGet();
+        mCheckLatency.record(timeNanos - mCheckStart.get()[0]);
+    }
+
+    @Override
+    public void onCacheHit(String permission, int check, long timeNanos) {
+        mCacheHitCount.incrementAndGet();
+    }
+
+    @Override
+    public void onSubjectCreated(String permission, long timeNanos) {
+        mSubjectCreatedCount.incrementAndGet();
+    }
+
+    @Override
+    public void onSubjectReused(String permission, long timeNanos) {
+        mSubjectReusedCount.incrementAndGet();
+    }
+
+    @Override
+    public void onDialogDispatched(String[] permissions, long timeNanos) {
+        mDialogCount.incrementAndGet();
+        for (String permission : permissions) {
+            mDispatchTimes.put(permission, timeNanos);
+        }
+    }
+
+    @Override
+    public void onResultDelivered(String permission, boolean granted, long timeNanos) {
+        mResultCount.incrementAndGet();
+        Long dispatchTime = mDispatchTimes.remove(permission);
+        if (dispatchTime != null) {
+            mDecisionLatency.record(timeNanos - dispatchTime);
+        }
+    }
+
+    public long getCheckCount() {
+        return mCheckCount.get();
+    }
+
+    public long getCacheHitCount() {
+        return mCacheHitCount.get();
+    }
+
+    /**
+     * Returns the number of checks which queried the system, each one is an IPC.
+     */
+    public long getSystemCheckCount() {
+        return Math.max(0, mCheckCount.get() - mCacheHitCount.get());
+    }
+
+    public long getSubjectCreatedCount() {
+        return mSubjectCreatedCount.get();
+    }
+
+    public long getSubjectReusedCount() {
+        return mSubjectReusedCount.get();
+    }
+
+    public long getDialogCount() {
+        return mDialogCount.get();
+    }
+
+    public long getResultCount() {
+        return mResultCount.get();
+    }
+
+    /**
+     * Returns the latency of the permission checks.
+     */
+    @NonNull
+    public Histogram getCheckLatency() {
+        return mCheckLatency;
+    }
+
+    /**
+     * Returns the time between the dialog and the result of each permission.
+     */
+    @NonNull
+    public Histogram getDecisionLatency() {
+        return mDecisionLatency;
+    }
+
+    /**
+     * Histogram of durations in nanoseconds, with one bucket per power of two.
+     */
+    public static class Histogram {
+
+        private static final int BUCKET_COUNT = 64;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            // Bucket i holds the durations in [2^(i-1), 2^i), bucket 0 the zero durations.
+            mBuckets.incrementAndGet(BUCKET_COUNT - Long.numberOfLeadingZeros(nanos));
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+            long max;
+            do {
+                max = mMaxNanos.get();
+            } while (nanos > max && !mMaxNanos.compareAndSet(max, nanos));
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getMeanNanos() {
+            long count = mCount.get();
+            return count == 0 ? 0 : mTotalNanos.get() / count;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos.get();
+        }
+
+        /**
+         * Returns an upper bound of the given percentile, the upper limit of its bucket.
+         *
+         * @param percentile between 0 and 100
+         */
+        public long getPercentileNanos(double percentile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return i == 0 ? 0 : Math.min((1L << i) - 1, mMaxNanos.get());
+                }
+            }
+            return mMaxNanos.get();
+        }
+    }
+}
@@ -0,0 +1,657 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbruyelle.rxpermissions3;
+
+import org.reactivestreams.Publisher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.CompletableSource;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.FlowableTransformer;
+import io.reactivex.rxjava3.core.Maybe;
+import io.reactivex.rxjava3.core.MaybeSource;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.core.ObservableSource;
+import io.reactivex.rxjava3.core.ObservableTransformer;
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.functions.Action;
+import io.reactivex.rxjava3.functions.Consumer;
+import io.reactivex.rxjava3.functions.Function;
+import io.reactivex.rxjava3.functions.Supplier;
+import io.reactivex.rxjava3.subjects.PublishSubject;
+
+/**
+ * Request engine of {@link RxPermissions}, free of any Android dependency so it can also run on
+ * a plain JVM.
+ * <p>
+ * Subclasses bind the permission checks, the pending requests and the system dialog to a host:
+ * {@link RxPermissions} to an activity or a fragment, {@link PermissionSimulator} to in-memory
+ * behaviors.
+ */
+abstract class BaseRxPermissions {
+
+    static final Object TRIGGER = new Object();
+
+    // States of a permission before its request.
+    private static final int STATE_GRANTED = 0;
+    private static final int STATE_REVOKED = 1;
+    private static final int STATE_REQUESTABLE = 2;
+
+    // Priorities of the dialogs, the higher first.
+    static final int PRIORITY_BACKGROUND = 0;
+    static final int PRIORITY_USER_INITIATED = 1;
+
+    PermissionsMetrics mMetrics = PermissionsMetrics.NONE;
+    // Null to check the permissions on the calling thread.
+    volatile Scheduler mCheckScheduler;
+    // Null to deliver the results on the thread they are received.
+    volatile Scheduler mResultScheduler;
+    // 0 to wait for the results without limit.
+    volatile long mRequestTimeoutMillis;
+    volatile Scheduler mTimeoutScheduler;
+    // Priority of the dialogs of the requests assembled from now on.
+    volatile int mRequestPriority = PRIORITY_USER_INITIATED;
+
+    /**
+     * Map emitted items from the source observable into {@code true} if permissions in parameters
+     * are granted, or {@code false} if not.
+     * <p>
+     * If one or several permissions have never been requested, invoke the related framework method
+     * to ask the user if he allows the permissions.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public <T> ObservableTransformer<T, Boolean> ensure(final String... permissions) {
+        final int priority = mRequestPriority;
+        return new ObservableTransformer<T, Boolean>() {
+            @Override
+            public ObservableSource<Boolean> apply(Observable<T> o) {
+                checkPermissions(permissions);
+                return o.flatMapMaybe(new Function<T, MaybeSource<Boolean>>() {
+                    @Override
+                    public MaybeSource<Boolean> apply(T t) {
+                        // Completes empty during orientation change, when the subject receives onComplete.
+                        // In that case we don't want to propagate anything to the subscriber, only the onComplete.
+                        return ReducePermissionsMaybe.allGranted(requestImplementation(priority, permissions));
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Map emitted items from the source observable into {@link Permission} objects for each
+     * permission in parameters.
+     * <p>
+     * If one or several permissions have never been requested, invoke the related framework method
+     * to ask the user if he allows the permissions.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public <T> ObservableTransformer<T, Permission> ensureEach(final String... permissions) {
+        final int priority = mRequestPriority;
+        return new ObservableTransformer<T, Permission>() {
+            @Override
+            public ObservableSource<Permission> apply(Observable<T> o) {
+                return request(o, priority, permissions);
+            }
+        };
+    }
+
+    /**
+     * Map emitted items from the source observable into one combined {@link Permission} object. Only if all permissions are granted,
+     * permission also will be granted. If any permission has {@code shouldShowRationale} checked, than result also has it checked.
+     * <p>
+     * If one or several permissions have never been requested, invoke the related framework method
+     * to ask the user if he allows the permissions.
+     */
+    public <T> ObservableTransformer<T, Permission> ensureEachCombined(final String... permissions) {
+        final int priority = mRequestPriority;
+        return new ObservableTransformer<T, Permission>() {
+            @Override
+            public ObservableSource<Permission> apply(Observable<T> o) {
+                checkPermissions(permissions);
+                // The results are emitted in the order of the permissions, so the combined name
+                // is the same for every emission.
+                final String combinedName = Permission.combineName(permissions);
+                return o.flatMapMaybe(new Function<T, MaybeSource<Permission>>() {
+                    @Override
+                    public MaybeSource<Permission> apply(T t) {
+                        return ReducePermissionsMaybe.combined(requestImplementation(priority, permissions), combinedName);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Same as {@link #ensure(String...)} for a {@link Flowable} source. Emitted items are
+     * processed one at a time, and only requested from the source when the downstream
+     * requests a result.
+     */
+    @SuppressWarnings("unused")
+    public <T> FlowableTransformer<T, Boolean> ensureFlowable(final String... permissions) {
+        final int priority = mRequestPriority;
+        return new FlowableTransformer<T, Boolean>() {
+            @Override
+            public Publisher<Boolean> apply(Flowable<T> f) {
+                checkPermissions(permissions);
+                return f.concatMapMaybe(new Function<T, MaybeSource<Boolean>>() {
+                    @Override
+                    public MaybeSource<Boolean> apply(T t) {
+                        return ReducePermissionsMaybe.allGranted(requestImplementation(priority, permissions));
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Same as {@link #ensureEachCombined(String...)} for a {@link Flowable} source. Emitted items
+     * are processed one at a time, and only requested from the source when the downstream
+     * requests a result.
+     */
+    @SuppressWarnings("unused")
+    public <T> FlowableTransformer<T, Permission> ensureEachCombinedFlowable(final String... permissions) {
+        final int priority = mRequestPriority;
+        return new FlowableTransformer<T, Permission>() {
+            @Override
+            public Publisher<Permission> apply(Flowable<T> f) {
+                checkPermissions(permissions);
+                final String combinedName = Permission.combineName(permissions);
+                return f.concatMapMaybe(new Function<T, MaybeSource<Permission>>() {
+                    @Override
+                    public MaybeSource<Permission> apply(T t) {
+                        return ReducePermissionsMaybe.combined(requestImplementation(priority, permissions), combinedName);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Request permissions immediately, <b>must be invoked during initialization phase
+     * of your application</b>.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public Observable<Boolean> request(final String... permissions) {
+        return Observable.just(TRIGGER).compose(ensure(permissions));
+    }
+
+    /**
+     * Request permissions immediately, <b>must be invoked during initialization phase
+     * of your application</b>.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public Observable<Permission> requestEach(final String... permissions) {
+        return Observable.just(TRIGGER).compose(ensureEach(permissions));
+    }
+
+    /**
+     * Request permissions immediately, <b>must be invoked during initialization phase
+     * of your application</b>.
+     */
+    public Observable<Permission> requestEachCombined(final String... permissions) {
+        return Observable.just(TRIGGER).compose(ensureEachCombined(permissions));
+    }
+
+    /**
+     * Request permissions immediately and emit {@code true} if they are all granted, <b>must be
+     * invoked during initialization phase of your application</b>.
+     */
+    @SuppressWarnings("unused")
+    public Single<Boolean> requestSingle(final String... permissions) {
+        checkPermissions(permissions);
+        final int priority = mRequestPriority;
+        return Maybe.defer(new Supplier<MaybeSource<Boolean>>() {
+            @Override
+            public MaybeSource<Boolean> get() {
+                return ReducePermissionsMaybe.allGranted(requestImplementation(priority, permissions));
+            }
+        }).toSingle();
+    }
+
+    /**
+     * Request permissions immediately and emit their combined {@link Permission}, <b>must be
+     * invoked during initialization phase of your application</b>.
+     */
+    @SuppressWarnings("unused")
+    public Single<Permission> requestEachCombinedSingle(final String... permissions) {
+        checkPermissions(permissions);
+        final String combinedName = Permission.combineName(permissions);
+        final int priority = mRequestPriority;
+        return Maybe.defer(new Supplier<MaybeSource<Permission>>() {
+            @Override
+            public MaybeSource<Permission> get() {
+                return ReducePermissionsMaybe.combined(requestImplementation(priority, permissions), combinedName);
+            }
+        }).toSingle();
+    }
+
+    /**
+     * Request permissions immediately and complete if they are all granted, or fail with a
+     * {@link PermissionDeniedException} if not, <b>must be invoked during initialization phase
+     * of your application</b>.
+     */
+    @SuppressWarnings("unused")
+    public Completable requestCompletable(final String... permissions) {
+        return requestEachCombinedSingle(permissions)
+                .flatMapCompletable(new Function<Permission, CompletableSource>() {
+                    @Override
+                    public CompletableSource apply(Permission permission) {
+                        if (permission.granted) {
+                            return Completable.complete();
+                        }
+                        return Completable.error(new PermissionDeniedException(permission));
+                    }
+                });
+    }
+
+    /**
+     * Returns true if all the permissions are already granted.
+     */
+    @SuppressWarnings("unused")
+    public boolean isGranted(PermissionSet permissions) {
+        for (int id = permissions.nextId(0); id >= 0; id = permissions.nextId(id + 1)) {
+            if (!isGranted(PermissionSet.nameOf(id))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the permissions of the set which are already granted.
+     */
+    @SuppressWarnings("unused")
+    public PermissionSet getGranted(PermissionSet permissions) {
+        long[] granted = new long[permissions.wordCount()];
+        for (int id = permissions.nextId(0); id >= 0; id = permissions.nextId(id + 1)) {
+            if (isGranted(PermissionSet.nameOf(id))) {
+                granted[id >>> 6] |= 1L << id;
+            }
+        }
+        return new PermissionSet(granted);
+    }
+
+    private Observable<Permission> request(final Observable<?> trigger, final int priority, final String... permissions) {
+        checkPermissions(permissions);
+        return trigger.flatMap( o -> requestImplementation(priority, permissions));
+    }
+
+    private static void checkPermissions(String[] permissions) {
+        if (permissions == null || permissions.length == 0) {
+            throw new IllegalArgumentException("RxPermissions.request/requestEach requires at least one input permission");
+        }
+    }
+
+    // Results of the permissions answered without a request, shared by all the instances.
+    private static final Map<String, Observable<Permission>> sGrantedResults = new ConcurrentHashMap<>();
+    private static final Map<String, Observable<Permission>> sRevokedResults = new ConcurrentHashMap<>();
+
+    private static Observable<Permission> immediateResult(Map<String, Observable<Permission>> results,
+                                                          String permission, boolean granted) {
+        Observable<Permission> result = results.get(permission);
+        if (result == null) {
+            // A concurrent call may replace it with an equal observable, which is harmless.
+            result = Observable.just(Permission.of(permission, granted, false));
+            results.put(permission, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param priority the priority of the dialog, read when the request is assembled
+     */
+    Observable<Permission> requestImplementation(final int priority, final String... permissions) {
+        // Permissions depending on others of the request are asked for once these are answered.
+        final List<String[]> stages = RequestPlanner.plan(permissions, getSdkInt());
+        if (stages == null) {
+            return requestStage(permissions, priority);
+        }
+        return Observable.defer(new Supplier<ObservableSource<Permission>>() {
+            @Override
+            public ObservableSource<Permission> get() {
+                return requestStages(stages, 0, priority, new HashMap<String, Permission>());
+            }
+        });
+    }
+
+    /**
+     * Requests a stage then the next ones, skipping the permissions none of whose prerequisites
+     * is granted: the system would deny them without asking.
+     *
+     * @param results results of the previous stages, the stages run one after another
+     */
+    private Observable<Permission> requestStages(final List<String[]> stages, final int index, final int priority,
+                                                 final Map<String, Permission> results) {
+        String[] stage = stages.get(index);
+        List<String> requestable = new ArrayList<>(stage.length);
+        List<Permission> skipped = new ArrayList<>();
+        for (String permission : stage) {
+            // Each permission after the first stage has a prerequisite in a previous one.
+            if (index == 0 || isPrerequisiteGranted(permission, results)) {
+                requestable.add(permission);
+            } else {
+                getLogger().log(PermissionsLogger.EVENT_SKIPPED, permission);
+                skipped.add(Permission.of(permission, false, shouldShowPrerequisiteRationale(permission, getSdkInt(), results)));
+            }
+        }
+        Observable<Permission> stageResults = Observable.fromIterable(skipped);
+        if (!requestable.isEmpty()) {
+            stageResults = requestStage(requestable.toArray(new String[requestable.size()]), priority).concatWith(stageResults);
+        }
+        stageResults = stageResults.doOnNext(new Consumer<Permission>() {
+            @Override
+            public void accept(Permission permission) {
+                results.put(permission.name, permission);
+            }
+        });
+        if (index + 1 == stages.size()) {
+            return stageResults;
+        }
+        return stageResults.concatWith(Observable.defer(new Supplier<ObservableSource<Permission>>() {
+            @Override
+            public ObservableSource<Permission> get() {
+                return requestStages(stages, index + 1, priority, results);
+            }
+        }));
+    }
+
+    private boolean isPrerequisiteGranted(String permission, Map<String, Permission> results) {
+        String[] prerequisites = RequestPlanner.getPrerequisites(permission, getSdkInt());
+        if (prerequisites == null) {
+            return true;
+        }
+        for (String prerequisite : prerequisites) {
+            Permission result = results.get(prerequisite);
+            // A prerequisite which wasn't requested along may already be granted.
+            if (result != null ? result.granted : isGranted(prerequisite)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The skipped permission can be requested again once a denied prerequisite is.
+    private static boolean shouldShowPrerequisiteRationale(String permission, int sdkInt, Map<String, Permission> results) {
+        String[] prerequisites = RequestPlanner.getPrerequisites(permission, sdkInt);
+        if (prerequisites != null) {
+            for (String prerequisite : prerequisites) {
+                Permission result = results.get(prerequisite);
+                if (result != null && result.shouldShowRequestPermissionRationale) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private Observable<Permission> requestStage(final String[] permissions, final int priority) {
+        Observable<Permission> results;
+        if (isOnRequestThread()) {
+            // A result can only be delivered once the request returns, no need to hop.
+            results = requestOnRequestThread(permissions, priority);
+        } else {
+            // The pending requests are looked up and subscribed to on the request thread, so a
+            // result can't be delivered in between.
+            results = Observable.defer(new Supplier<ObservableSource<Permission>>() {
+                @Override
+                public ObservableSource<Permission> get() {
+                    return requestOnRequestThread(permissions, priority);
+                }
+            }).subscribeOn(getRequestScheduler());
+        }
+        Scheduler resultScheduler = mResultScheduler;
+        return resultScheduler == null ? results : results.observeOn(resultScheduler);
+    }
+
+    private Observable<Permission> requestOnRequestThread(final String[] permissions, final int priority) {
+        // Resolves the host once for the whole request, before the checks may leave its thread.
+        final PermissionsLogger logger = getLogger();
+        final PendingRequests pendingRequests = getPendingRequests();
+        Scheduler checkScheduler = mCheckScheduler;
+        if (checkScheduler == null) {
+            return requestImplementation(logger, pendingRequests, permissions, null, priority);
+        }
+        return checkConcurrently(checkScheduler, permissions)
+                .observeOn(getRequestScheduler())
+                .flatMapObservable(new Function<List<Integer>, ObservableSource<Permission>>() {
+                    @Override
+                    public ObservableSource<Permission> apply(List<Integer> states) {
+                        return requestImplementation(logger, pendingRequests, permissions, states, priority);
+                    }
+                });
+    }
+
+    /**
+     * Checks the permissions concurrently on the scheduler, emits their states in the order of
+     * the permissions.
+     */
+    private Single<List<Integer>> checkConcurrently(final Scheduler checkScheduler, String[] permissions) {
+        return Observable.fromArray(permissions)
+                .concatMapEager(new Function<String, ObservableSource<Integer>>() {
+                    @Override
+                    public ObservableSource<Integer> apply(final String permission) {
+                        return Observable.fromCallable(new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                return checkState(permission);
+                            }
+                        }).subscribeOn(checkScheduler);
+                    }
+                })
+                .toList();
+    }
+
+    private int checkState(String permission) {
+        if (isGranted(permission)) {
+            return STATE_GRANTED;
+        }
+        if (isRevoked(permission)) {
+            return STATE_REVOKED;
+        }
+        return STATE_REQUESTABLE;
+    }
+
+    /**
+     * @param states the states of the permissions if they are already checked, or null to check
+     *               them now
+     */
+    private Observable<Permission> requestImplementation(PermissionsLogger logger, final PendingRequests pendingRequests,
+                                                         String[] permissions, List<Integer> states, int priority) {
+        @SuppressWarnings("unchecked")
+        Observable<Permission>[] list = new Observable[permissions.length];
+        // Allocated once a permission must be requested, the granted ones don't need them.
+        List<String> unrequestedPermissions = null;
+        List<PendingRequest> acquiredRequests = null;
+
+        // In case of multiple permissions, we create an Observable for each of them.
+        // At the end, the observables are combined to have a unique response.
+        for (int i = 0; i < permissions.length; i++) {
+            String permission = permissions[i];
+            logger.log(PermissionsLogger.EVENT_REQUESTING, permission);
+            int state = states != null ? states.get(i) : checkState(permission);
+            if (state == STATE_GRANTED) {
+                // Already granted, or not Android M
+                // Return a granted Permission object.
+                list[i] = immediateResult(sGrantedResults, permission, true);
+                continue;
+            }
+
+            if (state == STATE_REVOKED) {
+                // Revoked by a policy, return a denied Permission object.
+                list[i] = immediateResult(sRevokedResults, permission, false);
+                continue;
+            }
+
+            PendingRequest request = pendingRequests.getRequest(permission);
+            if (request == null) {
+                Permission retainedResult = pendingRequests.getRetainedResult(permission);
+                if (retainedResult != null) {
+                    // Answered recently, return the retained result without asking again.
+                    list[i] = Observable.just(retainedResult);
+                    continue;
+                }
+            }
+            boolean created = false;
+            // Reuse the pending request, or create a new one if there is none or if its last
+            // request released it meanwhile.
+            while (request == null || !request.acquire()) {
+                if (request != null) {
+                    pendingRequests.removeRequest(request);
+                }
+                PendingRequest newRequest = new PendingRequest(permission, PublishSubject.<Permission>create());
+                // Atomic, only one of concurrent requests of the permission creates it.
+                request = pendingRequests.putRequestIfAbsent(permission, newRequest);
+                if (request == null) {
+                    request = newRequest;
+                    request.acquire();
+                    created = true;
+                    break;
+                }
+            }
+            if (created) {
+                if (unrequestedPermissions == null) {
+                    unrequestedPermissions = new ArrayList<>();
+                }
+                unrequestedPermissions.add(permission);
+                scheduleTimeout(pendingRequests, request);
+            }
+            PermissionsMetrics metrics = mMetrics;
+            if (metrics != PermissionsMetrics.NONE) {
+                if (created) {
+                    metrics.onSubjectCreated(permission, System.nanoTime());
+                } else {
+                    metrics.onSubjectReused(permission, System.nanoTime());
+                }
+            }
+
+            if (acquiredRequests == null) {
+                acquiredRequests = new ArrayList<>();
+            }
+            acquiredRequests.add(request);
+            list[i] = request.getSubject();
+        }
+
+        if (unrequestedPermissions != null) {
+            String[] unrequestedPermissionsArray = unrequestedPermissions.toArray(new String[unrequestedPermissions.size()]);
+            requestPermissionsFromFragment(unrequestedPermissionsArray, priority);
+        }
+        Observable<Permission> results = list.length == 1 ? list[0] : Observable.concatArray(list);
+        if (acquiredRequests == null) {
+            return results;
+        }
+        final List<PendingRequest> releasedRequests = acquiredRequests;
+        return results.doFinally(new Action() {
+            @Override
+            public void run() {
+                for (int i = 0, size = releasedRequests.size(); i < size; i++) {
+                    PendingRequest request = releasedRequests.get(i);
+                    if (request.release()) {
+                        // No request waits for it anymore, the next one asks again.
+                        evictRequest(pendingRequests, request, false);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Fails the request if its result is not received within the timeout.
+     */
+    private void scheduleTimeout(final PendingRequests pendingRequests, final PendingRequest request) {
+        final long timeoutMillis = mRequestTimeoutMillis;
+        Scheduler timeoutScheduler = mTimeoutScheduler;
+        if (timeoutMillis <= 0 || timeoutScheduler == null) {
+            return;
+        }
+        timeoutScheduler.scheduleDirect(new Runnable() {
+            @Override
+            public void run() {
+                // Not removed if its result was delivered meanwhile.
+                if (evictRequest(pendingRequests, request, true)) {
+                    request.getSubject().onError(new TimeoutException(
+                            "No result for " + request.getPermission() + " after " + timeoutMillis + "ms"));
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes the request before its result, then lets the pending requests know on the request
+     * thread, where the dialogs are requested.
+     *
+     * @return false if it was no longer pending
+     */
+    private boolean evictRequest(final PendingRequests pendingRequests, final PendingRequest request,
+                                 final boolean timedOut) {
+        if (!pendingRequests.removeRequest(request)) {
+            return false;
+        }
+        getRequestScheduler().scheduleDirect(new Runnable() {
+            @Override
+            public void run() {
+                pendingRequests.onRequestEvicted(request.getPermission(), timedOut);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns true if the permission is already granted.
+     */
+    public abstract boolean isGranted(String permission);
+
+    /**
+     * Returns true if the permission has been revoked by a policy.
+     */
+    public abstract boolean isRevoked(String permission);
+
+    /**
+     * Requests the permissions from the host, their dialog is queued with the priority.
+     */
+    abstract void requestPermissionsFromFragment(String[] permissions, int priority);
+
+    abstract PendingRequests getPendingRequests();
+
+    abstract PermissionsLogger getLogger();
+
+    /**
+     * Returns the scheduler of the thread allowed to request permissions. The pending requests
+     * are looked up and the dialog is requested on it, whatever the thread a request comes from.
+     */
+    abstract Scheduler getRequestScheduler();
+
+    /**
+     * Returns true if the calling thread is the one of {@link #getRequestScheduler()}.
+     */
+    abstract boolean isOnRequestThread();
+
+    /**
+     * Returns the API level of the device, the permission dependencies enforced by the system
+     * depend on it.
+     */
+    abstract int getSdkInt();
+
+}
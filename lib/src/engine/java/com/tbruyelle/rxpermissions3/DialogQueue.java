@@ -0,0 +1,264 @@
+package com.tbruyelle.rxpermissions3;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes the system dialogs of a host. Android shows only one permission dialog at a time,
+ * so a dialog is dispatched only once the result of the previous one is received.
+ * <p>
+ * Queued dialogs are dispatched by priority, then in the order they were queued. Dialogs queued
+ * with the same priority are merged into a single one.
+ */
+class DialogQueue {
+
+    // Dialogs waiting for the current one to finish, guarded by this.
+    private final List<Entry> mEntries = new ArrayList<>();
+    // Backend showing the current dialog, null if none is showing.
+    private PermissionBackend mShowingBackend;
+    // Permissions of the current dialog, null if none is showing.
+    private String[] mShowingPermissions;
+    // Requests the current dialog was shown for, null if none is showing.
+    private PendingRequest[] mShowingRequests;
+    // Async trace slice of the current dialog, ended with its result or when it's released.
+    private int mShowingRequestId = PermissionsTrace.NO_REQUEST;
+
+    /**
+     * Dispatches the dialog through the backend if none is showing, otherwise queues it.
+     */
+    void enqueue(@NonNull String[] permissions, int priority, @NonNull PermissionBackend backend) {
+        synchronized (this) {
+            Entry entry = null;
+            for (int i = 0, size = mEntries.size(); i < size; i++) {
+                if (mEntries.get(i).mPriority == priority) {
+                    entry = mEntries.get(i);
+                    break;
+                }
+            }
+            if (entry == null) {
+                entry = new Entry(priority, TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+                mEntries.add(entry);
+            }
+            Collections.addAll(entry.mPermissions, permissions);
+        }
+        dispatchNext(backend);
+    }
+
+    /**
+     * Dispatches the next queued dialog, if any, through the backend which received the result
+     * of the current one.
+     */
+    void onDialogFinished(@NonNull PermissionBackend backend) {
+        synchronized (this) {
+            releaseShowing();
+        }
+        dispatchNext(backend);
+    }
+
+    /**
+     * Returns the permissions of the current dialog if the results are its own, or null if they
+     * are the late results of a dialog already released, which must not finish the current one.
+     * An empty result is the one of an interrupted dialog.
+     */
+    @Nullable
+    synchronized String[] onResultReceived(@NonNull PermissionResultBatch results) {
+        if (mShowingPermissions == null) {
+            return null;
+        }
+        for (int i = 0, size = results.size(); i < size; i++) {
+            if (!contains(mShowingPermissions, results.getPermission(i))) {
+                return null;
+            }
+        }
+        return mShowingPermissions;
+    }
+
+    private static boolean contains(String[] permissions, String permission) {
+        for (String p : permissions) {
+            if (p.equals(permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the request waits for a queued dialog rather than the current one, as it
+     * was made after the request the current dialog was shown for was disposed. The result of
+     * the current dialog doesn't answer it.
+     */
+    synchronized boolean isQueued(@NonNull PendingRequest request) {
+        if (mShowingRequests != null) {
+            for (PendingRequest showing : mShowingRequests) {
+                if (showing == request) {
+                    return false;
+                }
+            }
+        }
+        for (int i = 0, size = mEntries.size(); i < size; i++) {
+            if (mEntries.get(i).mPermissions.contains(request.getPermission())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the permission from the queued dialogs if no request waits for it anymore.
+     * <p>
+     * The current dialog stays until its result is received, even if nobody waits for it: Android
+     * rejects another dialog while it's showing. It's only released once a request timed out and
+     * none of its requests is pending anymore, as its result may never be received. The next
+     * queued dialog is then dispatched through the backend which showed it.
+     */
+    void onRequestEvicted(@NonNull String permission, boolean timedOut, @NonNull PendingRequests requests) {
+        PermissionBackend backend;
+        synchronized (this) {
+            if (requests.getRequest(permission) == null) {
+                removeQueued(permission);
+            }
+            backend = mShowingBackend;
+            if (!timedOut || backend == null) {
+                return;
+            }
+            for (PendingRequest request : mShowingRequests) {
+                if (requests.getRequest(request.getPermission()) == request) {
+                    return;
+                }
+            }
+            releaseShowing();
+        }
+        dispatchNext(backend);
+    }
+
+    // Guarded by this.
+    private void removeQueued(@NonNull String permission) {
+        Iterator<Entry> iterator = mEntries.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.mPermissions.remove(permission) && entry.mPermissions.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Stops waiting for the dialog shown by a backend whose host is destroyed, its result will
+     * never be received. The next queued dialog is dispatched by the next backend requesting
+     * permissions or receiving a result.
+     *
+     * @return the requests the dialog was shown for, or null if the backend wasn't showing one
+     */
+    @Nullable
+    synchronized PendingRequest[] onBackendFinished(@NonNull PermissionBackend backend) {
+        if (mShowingBackend != backend) {
+            return null;
+        }
+        PendingRequest[] requests = mShowingRequests;
+        releaseShowing();
+        return requests;
+    }
+
+    private void dispatchNext(@NonNull PermissionBackend backend) {
+        PendingRequests requests = backend.getRegistry();
+        PendingRequest[] waited;
+        String[] permissions;
+        synchronized (this) {
+            if (mShowingBackend != null) {
+                return;
+            }
+            do {
+                if (mEntries.isEmpty()) {
+                    return;
+                }
+                Entry next = mEntries.get(0);
+                for (int i = 1, size = mEntries.size(); i < size; i++) {
+                    if (mEntries.get(i).mPriority > next.mPriority) {
+                        next = mEntries.get(i);
+                    }
+                }
+                mEntries.remove(next);
+                // The requests may have been disposed or timed out while the dialog was waiting.
+                waited = next.getWaitedRequests(requests);
+            } while (waited == null);
+            permissions = new String[waited.length];
+            for (int i = 0; i < waited.length; i++) {
+                permissions[i] = waited[i].getPermission();
+            }
+            mShowingBackend = backend;
+            mShowingPermissions = permissions;
+            mShowingRequests = waited;
+            mShowingRequestId = PermissionsTrace.beginRequest();
+        }
+        backend.dispatchRequestPermissions(permissions);
+    }
+
+    /**
+     * Returns the number of dialogs waiting for the current one to finish.
+     */
+    synchronized int getDepth() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns how long the oldest queued dialog has been waiting, 0 if none is queued.
+     */
+    synchronized long getLongestWaitMillis() {
+        if (mEntries.isEmpty()) {
+            return 0;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0, size = mEntries.size(); i < size; i++) {
+            oldest = Math.min(oldest, mEntries.get(i).mQueuedAt);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) - oldest;
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        releaseShowing();
+    }
+
+    // Guarded by this.
+    private void releaseShowing() {
+        PermissionsTrace.endRequest(mShowingRequestId);
+        mShowingBackend = null;
+        mShowingPermissions = null;
+        mShowingRequests = null;
+        mShowingRequestId = PermissionsTrace.NO_REQUEST;
+    }
+
+    private static final class Entry {
+        final int mPriority;
+        final long mQueuedAt;
+        final Set<String> mPermissions = new LinkedHashSet<>();
+
+        Entry(int priority, long queuedAt) {
+            mPriority = priority;
+            mQueuedAt = queuedAt;
+        }
+
+        /**
+         * Returns the requests still waiting for the permissions, or null if there is none.
+         */
+        @Nullable
+        PendingRequest[] getWaitedRequests(@NonNull PendingRequests requests) {
+            List<PendingRequest> waited = new ArrayList<>(mPermissions.size());
+            for (String permission : mPermissions) {
+                PendingRequest request = requests.getRequest(permission);
+                if (request != null) {
+                    waited.add(request);
+                }
+            }
+            return waited.isEmpty() ? null : waited.toArray(new PendingRequest[waited.size()]);
+        }
+    }
+}
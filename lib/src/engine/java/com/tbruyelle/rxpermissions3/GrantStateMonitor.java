@@ -0,0 +1,105 @@
+package com.tbruyelle.rxpermissions3;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.subjects.PublishSubject;
+import io.reactivex.rxjava3.subjects.Subject;
+
+/**
+ * Grant states of the permissions observed with {@link RxPermissions#observe(String...)}.
+ * <p>
+ * The states are checked again in a single pass each time the host resumes, and only the
+ * permissions whose state changed are emitted, to all the observers at once.
+ * <p>
+ * The changes are emitted once the lock is released, so observers may call back into the monitor
+ * from any thread, and a slow observer doesn't block the other passes.
+ */
+class GrantStateMonitor {
+
+    interface Checker {
+        boolean isGranted(String permission);
+    }
+
+    // Last known states of the observed permissions.
+    private final Map<String, Permission> mStates = new HashMap<>();
+    private final Map<String, Integer> mObserverCounts = new HashMap<>();
+    // Serialized, as passes on different threads may emit at the same time.
+    private final Subject<Permission> mChanges = PublishSubject.<Permission>create().toSerialized();
+
+    /**
+     * Starts observing the permissions, returns their current states.
+     * <p>
+     * A state which changed since the last pass is also emitted to the current observers.
+     */
+    @NonNull
+    List<Permission> track(@NonNull String[] permissions, @NonNull Checker checker) {
+        List<Permission> states = new ArrayList<>(permissions.length);
+        List<Permission> changes = new ArrayList<>();
+        synchronized (this) {
+            for (String permission : permissions) {
+                Integer count = mObserverCounts.get(permission);
+                mObserverCounts.put(permission, count == null ? 1 : count + 1);
+                Permission state = Permission.of(permission, checker.isGranted(permission), false);
+                Permission previous = mStates.put(permission, state);
+                if (previous != null && !previous.equals(state)) {
+                    changes.add(state);
+                }
+                states.add(state);
+            }
+        }
+        emit(changes);
+        return states;
+    }
+
+    synchronized void untrack(@NonNull String[] permissions) {
+        for (String permission : permissions) {
+            Integer count = mObserverCounts.get(permission);
+            if (count == null) {
+                continue;
+            }
+            if (count == 1) {
+                mObserverCounts.remove(permission);
+                mStates.remove(permission);
+            } else {
+                mObserverCounts.put(permission, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Checks the observed permissions and emits the ones whose state changed.
+     */
+    void refresh(@NonNull Checker checker) {
+        List<Permission> changes = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<String, Permission> entry : mStates.entrySet()) {
+                String permission = entry.getKey();
+                Permission state = Permission.of(permission, checker.isGranted(permission), false);
+                if (!state.equals(entry.getValue())) {
+                    entry.setValue(state);
+                    changes.add(state);
+                }
+            }
+        }
+        emit(changes);
+    }
+
+    private void emit(List<Permission> changes) {
+        // Emitted after the pass and outside the lock, observers may start or stop observing in
+        // reaction, on any thread.
+        for (int i = 0, size = changes.size(); i < size; i++) {
+            mChanges.onNext(changes.get(i));
+        }
+    }
+
+    @NonNull
+    Observable<Permission> getChanges() {
+        return mChanges;
+    }
+}
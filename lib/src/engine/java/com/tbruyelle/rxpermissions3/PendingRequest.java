@@ -0,0 +1,59 @@
+package com.tbruyelle.rxpermissions3;
+
+import androidx.annotation.NonNull;
+
+import io.reactivex.rxjava3.subjects.PublishSubject;
+
+/**
+ * Request of a permission in flight, shared by all the requests of the permission made until its
+ * result is delivered.
+ * <p>
+ * Each request holding it counts as a reference. Once the last one is disposed, the entry is
+ * evicted, so the next request of the permission shows the dialog again instead of waiting for
+ * a result that may never come.
+ */
+final class PendingRequest {
+
+    private final String mPermission;
+    private final PublishSubject<Permission> mSubject;
+    // Requests holding this one, guarded by this.
+    private int mRefCount;
+    private boolean mReleased;
+
+    PendingRequest(@NonNull String permission, @NonNull PublishSubject<Permission> subject) {
+        mPermission = permission;
+        mSubject = subject;
+    }
+
+    @NonNull
+    String getPermission() {
+        return mPermission;
+    }
+
+    @NonNull
+    PublishSubject<Permission> getSubject() {
+        return mSubject;
+    }
+
+    /**
+     * Adds a reference, returns false if the last one was already released.
+     */
+    synchronized boolean acquire() {
+        if (mReleased) {
+            return false;
+        }
+        mRefCount++;
+        return true;
+    }
+
+    /**
+     * Removes a reference, returns true if it was the last one.
+     */
+    synchronized boolean release() {
+        if (--mRefCount == 0) {
+            mReleased = true;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,42 @@
+package com.tbruyelle.rxpermissions3;
+
+/**
+ * Permission requests in flight and recent results, looked up by the request engine.
+ * <p>
+ * Implementations are safe to use from any thread.
+ */
+interface PendingRequests {
+
+    /**
+     * Returns the pending request of the permission, or null if none is pending.
+     */
+    PendingRequest getRequest(String permission);
+
+    /**
+     * Atomically puts a new request of the permission, unless one is already pending.
+     *
+     * @return the request already pending, or null if the given request was put
+     */
+    PendingRequest putRequestIfAbsent(String permission, PendingRequest request);
+
+    /**
+     * Removes the request if it is still the pending one of its permission.
+     *
+     * @return true if it was removed
+     */
+    boolean removeRequest(PendingRequest request);
+
+    /**
+     * Called on the request thread after a request was removed before its result, because it
+     * timed out or nobody waits for it anymore.
+     *
+     * @param timedOut true if it timed out, its result may never be received
+     */
+    void onRequestEvicted(String permission, boolean timedOut);
+
+    /**
+     * Returns the result of a recent request for the permission, or null if there is none or
+     * results are not retained.
+     */
+    Permission getRetainedResult(String permission);
+}
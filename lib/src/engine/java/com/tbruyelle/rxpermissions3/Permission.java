@@ -0,0 +1,150 @@
+package com.tbruyelle.rxpermissions3;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class Permission {
+
+    // Canonical instances for each name, indexed by their granted and rationale flags.
+    private static final ConcurrentHashMap<String, Permission[]> sInterned = new ConcurrentHashMap<>();
+
+    public final String name;
+    public final boolean granted;
+    public final boolean shouldShowRequestPermissionRationale;
+
+    public Permission(String name, boolean granted) {
+        this(name, granted, false);
+    }
+
+    public Permission(String name, boolean granted, boolean shouldShowRequestPermissionRationale) {
+        this.name = name;
+        this.granted = granted;
+        this.shouldShowRequestPermissionRationale = shouldShowRequestPermissionRationale;
+    }
+
+    /**
+     * Returns the canonical instance for the given values.
+     * <p>
+     * {@code Permission} being immutable, the instances can be shared instead of allocated for
+     * each result. Only use it with the names of the permissions declared by the application,
+     * the instances are kept for the lifetime of the process.
+     */
+    @NonNull
+    public static Permission of(@NonNull String name, boolean granted, boolean shouldShowRequestPermissionRationale) {
+        Permission[] instances = sInterned.get(name);
+        if (instances == null) {
+            instances = new Permission[4];
+            Permission[] previous = sInterned.putIfAbsent(name, instances);
+            if (previous != null) {
+                instances = previous;
+            }
+        }
+        int index = (granted ? 2 : 0) | (shouldShowRequestPermissionRationale ? 1 : 0);
+        Permission permission = instances[index];
+        if (permission == null) {
+            // A concurrent call may create an equal instance, which is harmless.
+            permission = new Permission(name, granted, shouldShowRequestPermissionRationale);
+            instances[index] = permission;
+        }
+        return permission;
+    }
+
+    public Permission(List<Permission> permissions) {
+        this(combineName(permissions), permissions);
+    }
+
+    Permission(String name, List<Permission> permissions) {
+        boolean granted = true;
+        boolean shouldShowRequestPermissionRationale = false;
+        for (int i = 0, size = permissions.size(); i < size; i++) {
+            Permission permission = permissions.get(i);
+            granted &= permission.granted;
+            shouldShowRequestPermissionRationale |= permission.shouldShowRequestPermissionRationale;
+        }
+        this.name = name;
+        this.granted = granted;
+        this.shouldShowRequestPermissionRationale = shouldShowRequestPermissionRationale;
+    }
+
+    @Override
+    @SuppressWarnings("SimplifiableIfStatement")
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final Permission that = (Permission) o;
+
+        if (granted != that.granted) return false;
+        if (shouldShowRequestPermissionRationale != that.shouldShowRequestPermissionRationale)
+            return false;
+        return name.equals(that.name);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = name.hashCode();
+        result = 31 * result + (granted ? 1 : 0);
+        result = 31 * result + (shouldShowRequestPermissionRationale ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "Permission{" +
+                "name='" + name + '\'' +
+                ", granted=" + granted +
+                ", shouldShowRequestPermissionRationale=" + shouldShowRequestPermissionRationale +
+                '}';
+    }
+
+    /**
+     * Combines several permissions into a single one, in one pass over the list.
+     * <p>
+     * The name is the concatenation of the permission names, the result is granted only if
+     * all the permissions are granted, and requires a rationale if any permission requires one.
+     */
+    @NonNull
+    public static Permission combine(@NonNull List<Permission> permissions) {
+        return combine(combineName(permissions), permissions);
+    }
+
+    /**
+     * Same as {@link #combine(List)} with a precomputed name, for callers which combine the
+     * same set of permissions repeatedly.
+     */
+    @NonNull
+    static Permission combine(@NonNull String name, @NonNull List<Permission> permissions) {
+        return new Permission(name, permissions);
+    }
+
+    static String combineName(List<Permission> permissions) {
+        int size = permissions.size();
+        if (size == 1) {
+            return permissions.get(0).name;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(permissions.get(i).name);
+        }
+        return sb.toString();
+    }
+
+    static String combineName(String... permissions) {
+        if (permissions.length == 1) {
+            return permissions[0];
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < permissions.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(permissions[i]);
+        }
+        return sb.toString();
+    }
+}
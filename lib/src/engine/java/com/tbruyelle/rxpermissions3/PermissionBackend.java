@@ -0,0 +1,41 @@
+package com.tbruyelle.rxpermissions3;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Host of the permission requests made by {@link RxPermissions}: checks the permissions, shows
+ * the system dialog and delivers its results to the pending requests.
+ */
+interface PermissionBackend {
+
+    boolean isGranted(String permission);
+
+    boolean isRevoked(String permission);
+
+    /**
+     * Requests the permissions, immediately or merged with other requests if a coalescing window
+     * is set. The dialog waits in the {@link DialogQueue} while another one is showing.
+     */
+    void enqueueRequest(@NonNull String[] permissions, int priority);
+
+    /**
+     * Shows the system dialog for the permissions, called by the {@link DialogQueue} once it's
+     * their turn.
+     */
+    void dispatchRequestPermissions(@NonNull String[] permissions);
+
+    /**
+     * Delivers the results of a request to the pending requests.
+     */
+    void onRequestPermissionsResult(@NonNull PermissionResultBatch results);
+
+    @NonNull
+    RequestRegistry getRegistry();
+
+    void setCoalescingWindow(long windowMillis);
+
+    void setMetrics(@NonNull PermissionsMetrics metrics);
+
+    @NonNull
+    PermissionsLogger getLogger();
+}
@@ -0,0 +1,18 @@
+package com.tbruyelle.rxpermissions3;
+
+/**
+ * Signaled by {@link RxPermissions#requestCompletable(String...)} when at least one of the
+ * permissions is denied.
+ */
+public class PermissionDeniedException extends RuntimeException {
+
+    /**
+     * The combined result of the request, see {@link Permission#combine(java.util.List)}.
+     */
+    public final Permission permission;
+
+    public PermissionDeniedException(Permission permission) {
+        super("Permission denied: " + permission.name);
+        this.permission = permission;
+    }
+}
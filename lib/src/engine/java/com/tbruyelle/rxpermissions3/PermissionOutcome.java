@@ -0,0 +1,63 @@
+package com.tbruyelle.rxpermissions3;
+
+/**
+ * Last outcome of the system request of a permission, kept by {@link PermissionOutcomeStore}.
+ */
+public class PermissionOutcome {
+
+    public final String name;
+    public final boolean granted;
+    public final boolean shouldShowRequestPermissionRationale;
+    /**
+     * Inferred from a denial without rationale: the user checked "don't ask again", or the
+     * system denies the permission without showing the dialog anymore.
+     */
+    public final boolean neverAskAgain;
+    /**
+     * When the outcome was received, in milliseconds since the epoch.
+     */
+    public final long timestamp;
+
+    PermissionOutcome(String name, boolean granted, boolean shouldShowRequestPermissionRationale, long timestamp) {
+        this.name = name;
+        this.granted = granted;
+        this.shouldShowRequestPermissionRationale = shouldShowRequestPermissionRationale;
+        this.neverAskAgain = !granted && !shouldShowRequestPermissionRationale;
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    @SuppressWarnings("SimplifiableIfStatement")
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final PermissionOutcome that = (PermissionOutcome) o;
+
+        if (granted != that.granted) return false;
+        if (shouldShowRequestPermissionRationale != that.shouldShowRequestPermissionRationale)
+            return false;
+        if (timestamp != that.timestamp) return false;
+        return name.equals(that.name);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = name.hashCode();
+        result = 31 * result + (granted ? 1 : 0);
+        result = 31 * result + (shouldShowRequestPermissionRationale ? 1 : 0);
+        result = 31 * result + (int) (timestamp ^ (timestamp >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionOutcome{" +
+                "name='" + name + '\'' +
+                ", granted=" + granted +
+                ", shouldShowRequestPermissionRationale=" + shouldShowRequestPermissionRationale +
+                ", neverAskAgain=" + neverAskAgain +
+                ", timestamp=" + timestamp +
+                '}';
+    }
+}
@@ -0,0 +1,110 @@
+package com.tbruyelle.rxpermissions3;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Results of one permission request, backed by the arrays received from the system.
+ * <p>
+ * The rationale flags are stored as bits, in a single word for up to 64 permissions. They are
+ * only asked to the {@link RationaleSource} for the denied permissions whose flag is read, once.
+ */
+final class PermissionResultBatch {
+
+    // Same values as PackageManager, the results are read on plain JVMs too.
+    static final int PERMISSION_GRANTED = 0;
+    static final int PERMISSION_DENIED = -1;
+
+    interface RationaleSource {
+        boolean shouldShowRequestPermissionRationale(@NonNull String permission);
+    }
+
+    private final String[] mPermissions;
+    private final int[] mGrantResults;
+    @Nullable
+    private final RationaleSource mRationaleSource;
+    private long mRationaleBits;
+    // Flags already set or asked to the source.
+    private long mResolvedBits;
+    // Flags of the permissions beyond the first 64, rarely needed.
+    private long[] mExtraRationaleBits;
+    private long[] mExtraResolvedBits;
+
+    PermissionResultBatch(@NonNull String[] permissions, @NonNull int[] grantResults) {
+        this(permissions, grantResults, null);
+    }
+
+    PermissionResultBatch(@NonNull String[] permissions, @NonNull int[] grantResults,
+                          @Nullable RationaleSource rationaleSource) {
+        mPermissions = permissions;
+        mGrantResults = grantResults;
+        mRationaleSource = rationaleSource;
+    }
+
+    int size() {
+        return mPermissions.length;
+    }
+
+    String getPermission(int index) {
+        return mPermissions[index];
+    }
+
+    boolean contains(@NonNull String permission) {
+        for (String result : mPermissions) {
+            if (result.equals(permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isGranted(int index) {
+        return mGrantResults[index] == PERMISSION_GRANTED;
+    }
+
+    boolean shouldShowRequestPermissionRationale(int index) {
+        if (index < 64) {
+            if ((mResolvedBits & (1L << index)) != 0) {
+                return (mRationaleBits & (1L << index)) != 0;
+            }
+        } else if (mExtraResolvedBits != null && (mExtraResolvedBits[(index >>> 6) - 1] & (1L << index)) != 0) {
+            return (mExtraRationaleBits[(index >>> 6) - 1] & (1L << index)) != 0;
+        }
+        // Meaningless for a granted permission.
+        if (mRationaleSource == null || isGranted(index)) {
+            return false;
+        }
+        boolean rationale = mRationaleSource.shouldShowRequestPermissionRationale(mPermissions[index]);
+        resolve(index, rationale);
+        return rationale;
+    }
+
+    /**
+     * Asks the source whether to show a rationale for a permission of the request the system
+     * returned no result for, false if there is no source.
+     */
+    boolean shouldShowRequestPermissionRationale(@NonNull String permission) {
+        return mRationaleSource != null && mRationaleSource.shouldShowRequestPermissionRationale(permission);
+    }
+
+    void setShouldShowRequestPermissionRationale(int index) {
+        resolve(index, true);
+    }
+
+    private void resolve(int index, boolean rationale) {
+        long bit = rationale ? 1L << index : 0;
+        if (index < 64) {
+            mResolvedBits |= 1L << index;
+            mRationaleBits |= bit;
+            return;
+        }
+        if (mExtraResolvedBits == null) {
+            mExtraResolvedBits = new long[(mPermissions.length - 1) >>> 6];
+            mExtraRationaleBits = new long[mExtraResolvedBits.length];
+        }
+        // Shifts are modulo 64, so 1L << index is the bit of index in its word.
+        int word = (index >>> 6) - 1;
+        mExtraResolvedBits[word] |= 1L << index;
+        mExtraRationaleBits[word] |= bit;
+    }
+}
@@ -0,0 +1,257 @@
+package com.tbruyelle.rxpermissions3;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable set of permissions, stored as a bitmask over process-wide permission ids.
+ * <p>
+ * Each permission name gets a dense id the first time it is seen, so membership tests, unions,
+ * intersections and differences are bit operations on {@code long} words instead of string
+ * comparisons. The platform permissions are registered first, so sets made of them fit in the
+ * first words. Use {@link #toArray()} to request the permissions of a set.
+ */
+public final class PermissionSet implements Iterable<String> {
+
+    // Same values as android.Manifest.permission, written out so this class stays free of
+    // Android and runs on a plain JVM.
+    private static final String[] PLATFORM_PERMISSIONS = {
+            "android.permission.READ_CALENDAR",
+            "android.permission.WRITE_CALENDAR",
+            "android.permission.CAMERA",
+            "android.permission.READ_CONTACTS",
+            "android.permission.WRITE_CONTACTS",
+            "android.permission.GET_ACCOUNTS",
+            "android.permission.ACCESS_FINE_LOCATION",
+            "android.permission.ACCESS_COARSE_LOCATION",
+            "android.permission.ACCESS_BACKGROUND_LOCATION",
+            "android.permission.RECORD_AUDIO",
+            "android.permission.READ_PHONE_STATE",
+            "android.permission.READ_PHONE_NUMBERS",
+            "android.permission.CALL_PHONE",
+            "android.permission.ANSWER_PHONE_CALLS",
+            "android.permission.READ_CALL_LOG",
+            "android.permission.WRITE_CALL_LOG",
+            "com.android.voicemail.permission.ADD_VOICEMAIL",
+            "android.permission.USE_SIP",
+            "android.permission.PROCESS_OUTGOING_CALLS",
+            "android.permission.BODY_SENSORS",
+            "android.permission.ACTIVITY_RECOGNITION",
+            "android.permission.SEND_SMS",
+            "android.permission.RECEIVE_SMS",
+            "android.permission.READ_SMS",
+            "android.permission.RECEIVE_WAP_PUSH",
+            "android.permission.RECEIVE_MMS",
+            "android.permission.READ_EXTERNAL_STORAGE",
+            "android.permission.WRITE_EXTERNAL_STORAGE",
+            "android.permission.ACCESS_MEDIA_LOCATION",
+    };
+
+    private static final ConcurrentHashMap<String, Integer> sIds = new ConcurrentHashMap<>();
+    private static volatile String[] sNames = new String[0];
+
+    static {
+        for (String permission : PLATFORM_PERMISSIONS) {
+            register(permission);
+        }
+    }
+
+    public static final PermissionSet EMPTY = new PermissionSet(new long[0]);
+
+    // Never ends with a zero word, so equal sets have equal arrays.
+    private final long[] mWords;
+
+    PermissionSet(long[] words) {
+        int length = words.length;
+        while (length > 0 && words[length - 1] == 0) {
+            length--;
+        }
+        mWords = length == words.length ? words : Arrays.copyOf(words, length);
+    }
+
+    @NonNull
+    public static PermissionSet of(@NonNull String... permissions) {
+        long[] words = new long[0];
+        for (String permission : permissions) {
+            int id = idOf(permission);
+            int word = id >>> 6;
+            if (word >= words.length) {
+                words = Arrays.copyOf(words, word + 1);
+            }
+            words[word] |= 1L << id;
+        }
+        return new PermissionSet(words);
+    }
+
+    /**
+     * Returns the id of the permission, registering it if it's new.
+     */
+    static int idOf(@NonNull String permission) {
+        Integer id = sIds.get(permission);
+        return id != null ? id : register(permission);
+    }
+
+    static String nameOf(int id) {
+        return sNames[id];
+    }
+
+    private static synchronized int register(String permission) {
+        Integer id = sIds.get(permission);
+        if (id != null) {
+            return id;
+        }
+        String[] names = Arrays.copyOf(sNames, sNames.length + 1);
+        names[names.length - 1] = permission;
+        // Publish the name before the id, so a visible id always has its name.
+        sNames = names;
+        sIds.put(permission, names.length - 1);
+        return names.length - 1;
+    }
+
+    public boolean contains(@NonNull String permission) {
+        Integer id = sIds.get(permission);
+        if (id == null) {
+            return false;
+        }
+        int word = id >>> 6;
+        return word < mWords.length && (mWords[word] & (1L << id)) != 0;
+    }
+
+    public boolean containsAll(@NonNull PermissionSet other) {
+        if (other.mWords.length > mWords.length) {
+            return false;
+        }
+        for (int i = 0; i < other.mWords.length; i++) {
+            if ((other.mWords[i] & ~mWords[i]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NonNull
+    public PermissionSet union(@NonNull PermissionSet other) {
+        long[] longer = mWords.length >= other.mWords.length ? mWords : other.mWords;
+        long[] shorter = longer == mWords ? other.mWords : mWords;
+        long[] words = longer.clone();
+        for (int i = 0; i < shorter.length; i++) {
+            words[i] |= shorter[i];
+        }
+        return new PermissionSet(words);
+    }
+
+    @NonNull
+    public PermissionSet intersect(@NonNull PermissionSet other) {
+        long[] words = new long[Math.min(mWords.length, other.mWords.length)];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = mWords[i] & other.mWords[i];
+        }
+        return new PermissionSet(words);
+    }
+
+    @NonNull
+    public PermissionSet minus(@NonNull PermissionSet other) {
+        long[] words = mWords.clone();
+        for (int i = 0, size = Math.min(words.length, other.mWords.length); i < size; i++) {
+            words[i] &= ~other.mWords[i];
+        }
+        return new PermissionSet(words);
+    }
+
+    public boolean isEmpty() {
+        return mWords.length == 0;
+    }
+
+    public int size() {
+        int size = 0;
+        for (long word : mWords) {
+            size += Long.bitCount(word);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the permissions, ordered by id.
+     */
+    @NonNull
+    public String[] toArray() {
+        String[] permissions = new String[size()];
+        int i = 0;
+        for (int id = nextId(0); id >= 0; id = nextId(id + 1)) {
+            permissions[i++] = nameOf(id);
+        }
+        return permissions;
+    }
+
+    /**
+     * Returns the first id of the set greater than or equal to {@code from}, or -1.
+     */
+    int nextId(int from) {
+        int word = from >>> 6;
+        if (word >= mWords.length) {
+            return -1;
+        }
+        // Shifts are modulo 64, so this keeps the bits of the word from the position of from.
+        long bits = mWords[word] & (-1L << from);
+        while (bits == 0) {
+            if (++word == mWords.length) {
+                return -1;
+            }
+            bits = mWords[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    int wordCount() {
+        return mWords.length;
+    }
+
+    @NonNull
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int mNext = nextId(0);
+
+            @Override
+            public boolean hasNext() {
+                return mNext >= 0;
+            }
+
+            @Override
+            public String next() {
+                if (mNext < 0) {
+                    throw new NoSuchElementException();
+                }
+                String permission = nameOf(mNext);
+                mNext = nextId(mNext + 1);
+                return permission;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(mWords, ((PermissionSet) o).mWords);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mWords);
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionSet" + Arrays.toString(toArray());
+    }
+}
@@ -0,0 +1,304 @@
+package com.tbruyelle.rxpermissions3;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+/**
+ * {@link BaseRxPermissions} answering from in-memory behaviors instead of the Android framework,
+ * to test and benchmark the request engine on a plain JVM.
+ * <p>
+ * The requests go through the same registry, coalescing window and dialog queue as on a device,
+ * only the system dialog is simulated. Dispatched dialogs are answered when
+ * {@link #answerPendingRequests()} is invoked, or after the latency set with
+ * {@link #setLatency(long, TimeUnit, Scheduler)}, the way the system dialog answers after the
+ * subscription. The answers are deterministic: a permission granted by the user stays granted,
+ * and one denied with "never ask again" is denied again at each request.
+ */
+public class PermissionSimulator extends BaseRxPermissions implements PermissionBackend {
+
+    /**
+     * Granted before any request.
+     */
+    public static final int GRANTED = 0;
+    /**
+     * Revoked by a policy, denied without showing the dialog.
+     */
+    public static final int REVOKED = 1;
+    /**
+     * Granted by the user when requested.
+     */
+    public static final int GRANT = 2;
+    /**
+     * Denied by the user when requested, a rationale should be shown before asking again.
+     */
+    public static final int DENY = 3;
+    /**
+     * Denied by the user with "never ask again" when requested.
+     */
+    public static final int DENY_NEVER_ASK_AGAIN = 4;
+
+    // API level simulated by default, the one of Android 13.
+    private static final int DEFAULT_SDK_INT = 33;
+
+    private final int mDefaultBehavior;
+    private final Map<String, Integer> mBehaviors = new ConcurrentHashMap<>();
+    private final Set<String> mDenied = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final RequestRegistry mRegistry = new RequestRegistry();
+    private final RequestCoalescer mCoalescer = new RequestCoalescer(new SimulatedTimer());
+    // Dialogs dispatched and not answered yet, guarded by this.
+    private final List<String[]> mPendingDialogs = new ArrayList<>();
+    // Ends of the coalescing windows waiting for answerPendingRequests, guarded by this.
+    private final List<Runnable> mPendingFlushes = new ArrayList<>();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    // Disabled, as it is by default.
+    private final PermissionsLogger mLogger = new PermissionsLogger(new PermissionsLogger.Printer() {
+        @Override
+        public void println(String message) {
+        }
+    });
+    private volatile PermissionsMetrics mMetrics = PermissionsMetrics.NONE;
+    // Null to answer only when answerPendingRequests is invoked.
+    private volatile Scheduler mLatencyScheduler;
+    private volatile long mLatencyMillis;
+    private volatile int mSdkInt = DEFAULT_SDK_INT;
+
+    /**
+     * @param defaultBehavior the behavior of the permissions without one set
+     */
+    public PermissionSimulator(int defaultBehavior) {
+        checkBehavior(defaultBehavior);
+        mDefaultBehavior = defaultBehavior;
+    }
+
+    public void setBehavior(@NonNull String permission, int behavior) {
+        checkBehavior(behavior);
+        mBehaviors.put(permission, behavior);
+    }
+
+    private static void checkBehavior(int behavior) {
+        if (behavior < GRANTED || behavior > DENY_NEVER_ASK_AGAIN) {
+            throw new IllegalArgumentException("Unknown behavior " + behavior);
+        }
+    }
+
+    public int getBehavior(@NonNull String permission) {
+        Integer behavior = mBehaviors.get(permission);
+        return behavior != null ? behavior : mDefaultBehavior;
+    }
+
+    /**
+     * Answers each dialog after the latency, on the scheduler, instead of waiting for
+     * {@link #answerPendingRequests()}. The coalescing windows end on the scheduler too. The
+     * scheduler must not run the answer immediately, it would be delivered before the
+     * subscription.
+     */
+    public void setLatency(long latency, @NonNull TimeUnit unit, @NonNull Scheduler scheduler) {
+        mLatencyMillis = unit.toMillis(latency);
+        mLatencyScheduler = scheduler;
+    }
+
+    /**
+     * Sets the API level of the simulated device, Android 13 by default.
+     */
+    public void setSdkInt(int sdkInt) {
+        mSdkInt = sdkInt;
+    }
+
+    /**
+     * Returns how many dialogs were shown.
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Returns true if the permission was denied and can still be asked, like
+     * {@code Activity.shouldShowRequestPermissionRationale}.
+     */
+    public boolean shouldShowRequestPermissionRationale(@NonNull String permission) {
+        return getBehavior(permission) == DENY && mDenied.contains(permission);
+    }
+
+    /**
+     * Ends the pending coalescing windows, then answers the dialogs shown so far according to
+     * the behaviors of their permissions. The dialogs shown meanwhile, such as the next ones of
+     * the dialog queue, wait for the next call.
+     */
+    public void answerPendingRequests() {
+        Runnable[] flushes;
+        synchronized (this) {
+            flushes = mPendingFlushes.toArray(new Runnable[mPendingFlushes.size()]);
+            mPendingFlushes.clear();
+        }
+        for (Runnable flush : flushes) {
+            flush.run();
+        }
+        String[][] dialogs;
+        synchronized (this) {
+            dialogs = mPendingDialogs.toArray(new String[mPendingDialogs.size()][]);
+            mPendingDialogs.clear();
+        }
+        for (String[] permissions : dialogs) {
+            answer(permissions);
+        }
+    }
+
+    private void answer(String[] permissions) {
+        int[] grantResults = new int[permissions.length];
+        for (int i = 0; i < permissions.length; i++) {
+            int behavior = getBehavior(permissions[i]);
+            boolean granted = behavior == GRANTED || behavior == GRANT;
+            if (behavior == GRANT) {
+                mBehaviors.put(permissions[i], GRANTED);
+            } else if (!granted) {
+                mDenied.add(permissions[i]);
+            }
+            grantResults[i] = granted ? PermissionResultBatch.PERMISSION_GRANTED : PermissionResultBatch.PERMISSION_DENIED;
+        }
+        onRequestPermissionsResult(new PermissionResultBatch(permissions, grantResults,
+                new PermissionResultBatch.RationaleSource() {
+                    @Override
+                    public boolean shouldShowRequestPermissionRationale(@NonNull String permission) {
+                        return PermissionSimulator.this.shouldShowRequestPermissionRationale(permission);
+                    }
+                }));
+    }
+
+    @Override
+    public boolean isGranted(String permission) {
+        return getBehavior(permission) == GRANTED;
+    }
+
+    @Override
+    public boolean isRevoked(String permission) {
+        return getBehavior(permission) == REVOKED;
+    }
+
+    @Override
+    void requestPermissionsFromFragment(String[] permissions, int priority) {
+        mLogger.log(PermissionsLogger.EVENT_REQUEST_PERMISSIONS, permissions);
+        enqueueRequest(permissions, priority);
+    }
+
+    @Override
+    public void enqueueRequest(@NonNull String[] permissions, int priority) {
+        synchronized (mCoalescer) {
+            mCoalescer.request(permissions, priority, this);
+        }
+    }
+
+    @Override
+    public void dispatchRequestPermissions(@NonNull final String[] permissions) {
+        mRequestCount.incrementAndGet();
+        if (mMetrics != PermissionsMetrics.NONE) {
+            mMetrics.onDialogDispatched(permissions, System.nanoTime());
+        }
+        Scheduler latencyScheduler = mLatencyScheduler;
+        if (latencyScheduler == null) {
+            synchronized (this) {
+                mPendingDialogs.add(permissions);
+            }
+            return;
+        }
+        latencyScheduler.scheduleDirect(new Runnable() {
+            @Override
+            public void run() {
+                answer(permissions);
+            }
+        }, mLatencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onRequestPermissionsResult(@NonNull PermissionResultBatch results) {
+        mRegistry.onRequestPermissionsResult(this, results, mMetrics);
+    }
+
+    @Override
+    @NonNull
+    public RequestRegistry getRegistry() {
+        return mRegistry;
+    }
+
+    @Override
+    public void setCoalescingWindow(long windowMillis) {
+        synchronized (mCoalescer) {
+            mCoalescer.setWindow(windowMillis, this);
+        }
+    }
+
+    @Override
+    public void setMetrics(@NonNull PermissionsMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    @Override
+    PendingRequests getPendingRequests() {
+        return mRegistry;
+    }
+
+    @Override
+    @NonNull
+    public PermissionsLogger getLogger() {
+        return mLogger;
+    }
+
+    @Override
+    Scheduler getRequestScheduler() {
+        return Schedulers.trampoline();
+    }
+
+    @Override
+    boolean isOnRequestThread() {
+        // The trampoline runs the requests on the calling thread.
+        return true;
+    }
+
+    @Override
+    int getSdkInt() {
+        return mSdkInt;
+    }
+
+    /**
+     * Ends the coalescing windows after the latency if one is set, otherwise when
+     * {@link #answerPendingRequests()} is invoked.
+     */
+    private final class SimulatedTimer implements RequestCoalescer.Timer {
+
+        @Override
+        public void postDelayed(@NonNull final Runnable task, long delayMillis) {
+            // The coalescer is shared with the requesting threads.
+            Runnable flush = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mCoalescer) {
+                        task.run();
+                    }
+                }
+            };
+            Scheduler latencyScheduler = mLatencyScheduler;
+            if (latencyScheduler == null) {
+                synchronized (PermissionSimulator.this) {
+                    mPendingFlushes.add(flush);
+                }
+                return;
+            }
+            latencyScheduler.scheduleDirect(flush, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void postOnNextFrame(@NonNull Runnable task) {
+            postDelayed(task, 0);
+        }
+    }
+}
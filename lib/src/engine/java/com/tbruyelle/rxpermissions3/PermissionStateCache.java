@@ -0,0 +1,67 @@
+package com.tbruyelle.rxpermissions3;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory snapshot of the granted and revoked states of the permissions, so repeated
+ * checks don't hit the package manager each time.
+ * <p>
+ * The snapshot must be invalidated every time the user may have changed a permission:
+ * when the host resumes, when a permission request returns, or explicitly.
+ */
+class PermissionStateCache {
+
+    private final Map<String, Boolean> mGranted = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> mRevoked = new ConcurrentHashMap<>();
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * Returns the cached granted state, or null if the permission has not been checked
+     * since the last invalidation.
+     */
+    Boolean getGranted(String permission) {
+        return lookup(mGranted, permission);
+    }
+
+    void putGranted(String permission, boolean granted) {
+        mGranted.put(permission, granted);
+    }
+
+    /**
+     * Returns the cached revoked state, or null if the permission has not been checked
+     * since the last invalidation.
+     */
+    Boolean getRevoked(String permission) {
+        return lookup(mRevoked, permission);
+    }
+
+    void putRevoked(String permission, boolean revoked) {
+        mRevoked.put(permission, revoked);
+    }
+
+    void invalidate() {
+        mGranted.clear();
+        mRevoked.clear();
+    }
+
+    long getHitCount() {
+        return mHitCount.get();
+    }
+
+    long getMissCount() {
+        return mMissCount.get();
+    }
+
+    private Boolean lookup(Map<String, Boolean> states, String permission) {
+        Boolean state = states.get(permission);
+        if (state == null) {
+            mMissCount.incrementAndGet();
+        } else {
+            mHitCount.incrementAndGet();
+        }
+        return state;
+    }
+}
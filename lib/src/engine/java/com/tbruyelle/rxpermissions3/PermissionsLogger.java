@@ -0,0 +1,137 @@
+package com.tbruyelle.rxpermissions3;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Structured log of the permission requests.
+ * <p>
+ * Events are recorded as a code and its arguments, and only formatted when they are printed or
+ * dumped, so logging does no work while it's disabled. The last events can be kept in a ring
+ * buffer, to be dumped on demand instead of printed one by one.
+ */
+class PermissionsLogger {
+
+    static final int EVENT_REQUESTING = 0;
+    static final int EVENT_REQUEST_PERMISSIONS = 1;
+    static final int EVENT_FLUSH_COALESCED = 2;
+    static final int EVENT_RESULT = 3;
+    static final int EVENT_SKIPPED = 4;
+
+    interface Printer {
+        void println(String message);
+    }
+
+    private final Printer mPrinter;
+    private volatile boolean mPrinting;
+    private volatile boolean mBuffering;
+
+    // Ring buffer of the last events, guarded by this.
+    private int[] mEvents = new int[0];
+    private Object[] mArgs = new Object[0];
+    private long[] mValues = new long[0];
+    private long[] mTimes = new long[0];
+    private int mNext;
+    private int mCount;
+
+    PermissionsLogger(@NonNull Printer printer) {
+        mPrinter = printer;
+    }
+
+    /**
+     * Prints each event as it happens.
+     */
+    void setPrinting(boolean printing) {
+        mPrinting = printing;
+    }
+
+    /**
+     * Keeps the last {@code size} events in memory, 0 to stop keeping them.
+     */
+    synchronized void setBufferSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("The log buffer size must not be negative: " + size);
+        }
+        mEvents = new int[size];
+        mArgs = new Object[size];
+        mValues = new long[size];
+        mTimes = new long[size];
+        mNext = 0;
+        mCount = 0;
+        mBuffering = size > 0;
+    }
+
+    void log(int event, Object arg) {
+        log(event, arg, 0);
+    }
+
+    void log(int event, Object arg, long value) {
+        if (mBuffering) {
+            record(event, arg, value);
+        }
+        if (mPrinting) {
+            mPrinter.println(format(event, arg, value));
+        }
+    }
+
+    private synchronized void record(int event, Object arg, long value) {
+        int capacity = mEvents.length;
+        if (capacity == 0) {
+            return;
+        }
+        mEvents[mNext] = event;
+        mArgs[mNext] = arg;
+        mValues[mNext] = value;
+        mTimes[mNext] = System.nanoTime();
+        mNext = (mNext + 1) % capacity;
+        if (mCount < capacity) {
+            mCount++;
+        }
+    }
+
+    /**
+     * Returns the buffered events, oldest first, one per line with its age.
+     */
+    @NonNull
+    synchronized String dump() {
+        StringBuilder sb = new StringBuilder();
+        long now = System.nanoTime();
+        int capacity = mEvents.length;
+        for (int i = 0; i < mCount; i++) {
+            int index = (mNext - mCount + i + capacity) % capacity;
+            sb.append('-').append(TimeUnit.NANOSECONDS.toMillis(now - mTimes[index])).append("ms ")
+                    .append(format(mEvents[index], mArgs[index], mValues[index]))
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String format(int event, Object arg, long value) {
+        switch (event) {
+            case EVENT_REQUESTING:
+                return "Requesting permission " + arg;
+            case EVENT_REQUEST_PERMISSIONS:
+                return "requestPermissionsFromFragment " + join((String[]) arg);
+            case EVENT_FLUSH_COALESCED:
+                return "flushCoalescedPermissions " + value;
+            case EVENT_RESULT:
+                return "onRequestPermissionsResult " + arg + (value != 0 ? " granted" : " denied");
+            case EVENT_SKIPPED:
+                return "Skipping permission " + arg + ", none of its prerequisites is granted";
+            default:
+                throw new IllegalArgumentException("Unknown log event " + event);
+        }
+    }
+
+    private static String join(String[] permissions) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < permissions.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(permissions[i]);
+        }
+        return sb.toString();
+    }
+}
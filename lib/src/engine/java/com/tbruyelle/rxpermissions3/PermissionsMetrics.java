@@ -0,0 +1,87 @@
+package com.tbruyelle.rxpermissions3;
+
+/**
+ * Receives the events of the permission requests, to measure what {@link RxPermissions} is doing.
+ * <p>
+ * Every event carries a {@link System#nanoTime()} timestamp. The events are invoked on the
+ * thread doing the work, usually the main thread, so implementations must be fast.
+ *
+ * @see RxPermissions#setMetrics(PermissionsMetrics)
+ * @see AggregatingPermissionsMetrics
+ */
+public interface PermissionsMetrics {
+
+    /**
+     * Check of {@link RxPermissions#isGranted(String)}.
+     */
+    int CHECK_GRANTED = 0;
+    /**
+     * Check of {@link RxPermissions#isRevoked(String)}.
+     */
+    int CHECK_REVOKED = 1;
+
+    /**
+     * Metrics doing nothing, the default. The library skips the timestamps when it's set.
+     */
+    PermissionsMetrics NONE = new PermissionsMetrics() {
+        @Override
+        public void onCheckStarted(String permission, int check, long timeNanos) {
+        }
+
+        @Override
+        public void onCheckFinished(String permission, int check, boolean result, long timeNanos) {
+        }
+
+        @Override
+        public void onCacheHit(String permission, int check, long timeNanos) {
+        }
+
+        @Override
+        public void onSubjectCreated(String permission, long timeNanos) {
+        }
+
+        @Override
+        public void onSubjectReused(String permission, long timeNanos) {
+        }
+
+        @Override
+        public void onDialogDispatched(String[] permissions, long timeNanos) {
+        }
+
+        @Override
+        public void onResultDelivered(String permission, boolean granted, long timeNanos) {
+        }
+    };
+
+    /**
+     * A check of the permission starts, {@code check} is {@link #CHECK_GRANTED} or {@link #CHECK_REVOKED}.
+     */
+    void onCheckStarted(String permission, int check, long timeNanos);
+
+    void onCheckFinished(String permission, int check, boolean result, long timeNanos);
+
+    /**
+     * A check of the permission has been answered from the state cache, without querying the system.
+     */
+    void onCacheHit(String permission, int check, long timeNanos);
+
+    /**
+     * A request of the permission is created, it will be asked to the system.
+     */
+    void onSubjectCreated(String permission, long timeNanos);
+
+    /**
+     * The permission is already being requested, the request shares its result.
+     */
+    void onSubjectReused(String permission, long timeNanos);
+
+    /**
+     * The system dialog is shown for the permissions.
+     */
+    void onDialogDispatched(String[] permissions, long timeNanos);
+
+    /**
+     * The result of the permission has been delivered to its request.
+     */
+    void onResultDelivered(String permission, boolean granted, long timeNanos);
+}
@@ -0,0 +1,84 @@
+package com.tbruyelle.rxpermissions3;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trace sections of the permission requests, shown by systrace and Perfetto once enabled with
+ * {@link RxPermissions#setTracing(boolean)}.
+ */
+final class PermissionsTrace {
+
+    static final String SECTION_GET_FRAGMENT = "RxPermissions.getRxPermissionsFragment";
+    static final String SECTION_IS_GRANTED = "RxPermissions.isGranted";
+    static final String SECTION_IS_REVOKED = "RxPermissions.isRevoked";
+    static final String SECTION_REQUEST_PERMISSIONS = "RxPermissions.requestPermissionsFromFragment";
+    // Async slice from the dialog to its result.
+    static final String SLICE_REQUEST = "RxPermissions.request";
+
+    /**
+     * No request traced, returned by {@link #beginRequest()} while tracing is disabled.
+     */
+    static final int NO_REQUEST = -1;
+
+    interface Tracer {
+        void beginSection(@NonNull String name);
+
+        void endSection();
+
+        void beginAsyncSection(@NonNull String name, int cookie);
+
+        void endAsyncSection(@NonNull String name, int cookie);
+    }
+
+    // Null while tracing is disabled.
+    private static volatile Tracer sTracer;
+    private static final AtomicInteger sNextRequestId = new AtomicInteger();
+
+    private PermissionsTrace() {
+    }
+
+    static void setTracer(Tracer tracer) {
+        sTracer = tracer;
+    }
+
+    /**
+     * Begins a section, returns the tracer to end it with or null if tracing is disabled.
+     */
+    @Nullable
+    static Tracer begin(@NonNull String section) {
+        Tracer tracer = sTracer;
+        if (tracer != null) {
+            tracer.beginSection(section);
+        }
+        return tracer;
+    }
+
+    static void end(@Nullable Tracer tracer) {
+        if (tracer != null) {
+            tracer.endSection();
+        }
+    }
+
+    /**
+     * Begins the async slice of a request, returns its id or {@link #NO_REQUEST}.
+     */
+    static int beginRequest() {
+        Tracer tracer = sTracer;
+        if (tracer == null) {
+            return NO_REQUEST;
+        }
+        int requestId = sNextRequestId.incrementAndGet();
+        tracer.beginAsyncSection(SLICE_REQUEST, requestId);
+        return requestId;
+    }
+
+    static void endRequest(int requestId) {
+        Tracer tracer = sTracer;
+        if (tracer != null && requestId != NO_REQUEST) {
+            tracer.endAsyncSection(SLICE_REQUEST, requestId);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.tbruyelle.rxpermissions3;
+
+/**
+ * Value created on first access and then published once, so the following accesses are a
+ * volatile read without any lock.
+ */
+abstract class PublishOnceLazy<V> {
+
+    private volatile V mValue;
+
+    public V get() {
+        V value = mValue;
+        if (value == null) {
+            synchronized (this) {
+                value = mValue;
+                if (value == null) {
+                    value = create();
+                    mValue = value;
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Creates the value, invoked once unless it returns null.
+     */
+    abstract V create();
+}
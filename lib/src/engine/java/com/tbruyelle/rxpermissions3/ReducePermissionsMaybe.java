@@ -0,0 +1,103 @@
+package com.tbruyelle.rxpermissions3;
+
+import io.reactivex.rxjava3.core.Maybe;
+import io.reactivex.rxjava3.core.MaybeObserver;
+import io.reactivex.rxjava3.core.ObservableSource;
+import io.reactivex.rxjava3.core.Observer;
+import io.reactivex.rxjava3.disposables.Disposable;
+
+/**
+ * Folds the results of one request into a single value as they arrive, without buffering them.
+ * <p>
+ * Completes empty if the request completes without any result, which happens when the pending
+ * subjects are completed during an orientation change.
+ */
+abstract class ReducePermissionsMaybe<R> extends Maybe<R> {
+
+    private final ObservableSource<Permission> mSource;
+
+    private ReducePermissionsMaybe(ObservableSource<Permission> source) {
+        mSource = source;
+    }
+
+    /**
+     * Emits true if all the permissions are granted.
+     */
+    static Maybe<Boolean> allGranted(ObservableSource<Permission> source) {
+        return new ReducePermissionsMaybe<Boolean>(source) {
+            @Override
+            Boolean result(boolean granted, boolean shouldShowRequestPermissionRationale) {
+                return granted;
+            }
+        };
+    }
+
+    /**
+     * Emits the combination of the permissions, as {@link Permission#combine(java.util.List)}.
+     */
+    static Maybe<Permission> combined(ObservableSource<Permission> source, final String name) {
+        return new ReducePermissionsMaybe<Permission>(source) {
+            @Override
+            Permission result(boolean granted, boolean shouldShowRequestPermissionRationale) {
+                return new Permission(name, granted, shouldShowRequestPermissionRationale);
+            }
+        };
+    }
+
+    abstract R result(boolean granted, boolean shouldShowRequestPermissionRationale);
+
+    @Override
+    protected void subscribeActual(MaybeObserver<? super R> observer) {
+        mSource.subscribe(new ReduceObserver(observer));
+    }
+
+    private final class ReduceObserver implements Observer<Permission>, Disposable {
+
+        private final MaybeObserver<? super R> mDownstream;
+        private Disposable mUpstream;
+        private boolean mHasResult;
+        private boolean mGranted = true;
+        private boolean mShouldShowRequestPermissionRationale;
+
+        ReduceObserver(MaybeObserver<? super R> downstream) {
+            mDownstream = downstream;
+        }
+
+        @Override
+        public void onSubscribe(Disposable d) {
+            mUpstream = d;
+            mDownstream.onSubscribe(this);
+        }
+
+        @Override
+        public void onNext(Permission permission) {
+            mHasResult = true;
+            mGranted &= permission.granted;
+            mShouldShowRequestPermissionRationale |= permission.shouldShowRequestPermissionRationale;
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            mDownstream.onError(e);
+        }
+
+        @Override
+        public void onComplete() {
+            if (mHasResult) {
+                mDownstream.onSuccess(result(mGranted, mShouldShowRequestPermissionRationale));
+            } else {
+                mDownstream.onComplete();
+            }
+        }
+
+        @Override
+        public void dispose() {
+            mUpstream.dispose();
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return mUpstream.isDisposed();
+        }
+    }
+}
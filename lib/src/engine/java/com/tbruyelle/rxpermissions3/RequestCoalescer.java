@@ -0,0 +1,89 @@
+package com.tbruyelle.rxpermissions3;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Merges the permissions requested within a window into a single system request.
+ */
+class RequestCoalescer {
+
+    /**
+     * Window which disables the coalescing, permissions are requested immediately.
+     */
+    static final long NO_COALESCING = -1;
+    /**
+     * Window which lasts until the next frame.
+     */
+    static final long COALESCE_NEXT_FRAME = 0;
+
+    /**
+     * Runs the end of the coalescing windows.
+     */
+    interface Timer {
+        void postDelayed(@NonNull Runnable task, long delayMillis);
+
+        void postOnNextFrame(@NonNull Runnable task);
+    }
+
+    // Permissions waiting for the end of the coalescing window to be requested together.
+    private final Set<String> mPermissions = new LinkedHashSet<>();
+    // Highest priority of the permissions waiting in the window.
+    private int mPriority;
+    private final Timer mTimer;
+    private long mWindowMillis = NO_COALESCING;
+
+    RequestCoalescer(@NonNull Timer timer) {
+        mTimer = timer;
+    }
+
+    /**
+     * Queues the dialog for the permissions, immediately or at the end of the coalescing window
+     * if one is set.
+     */
+    void request(@NonNull String[] permissions, int priority, @NonNull final PermissionBackend backend) {
+        if (mWindowMillis < 0) {
+            backend.getRegistry().getDialogQueue().enqueue(permissions, priority, backend);
+            return;
+        }
+        boolean flushScheduled = !mPermissions.isEmpty();
+        Collections.addAll(mPermissions, permissions);
+        if (flushScheduled) {
+            mPriority = Math.max(mPriority, priority);
+            return;
+        }
+        mPriority = priority;
+        Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                flush(backend);
+            }
+        };
+        if (mWindowMillis == COALESCE_NEXT_FRAME) {
+            mTimer.postOnNextFrame(flush);
+        } else {
+            mTimer.postDelayed(flush, mWindowMillis);
+        }
+    }
+
+    void flush(@NonNull PermissionBackend backend) {
+        if (mPermissions.isEmpty()) {
+            return;
+        }
+        String[] permissions = mPermissions.toArray(new String[mPermissions.size()]);
+        mPermissions.clear();
+        backend.getLogger().log(PermissionsLogger.EVENT_FLUSH_COALESCED, null, permissions.length);
+        backend.getRegistry().getDialogQueue().enqueue(permissions, mPriority, backend);
+    }
+
+    void setWindow(long windowMillis, @NonNull PermissionBackend backend) {
+        mWindowMillis = windowMillis;
+        if (windowMillis < 0) {
+            // Don't leave pending permissions behind when disabling the coalescing.
+            flush(backend);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.tbruyelle.rxpermissions3;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Splits the permissions of a request into stages, when some of them can only be requested once
+ * one of their prerequisites is granted.
+ * <p>
+ * For instance since Android 10 the system denies {@code ACCESS_BACKGROUND_LOCATION} without
+ * asking when it's requested along with the foreground location, it must be requested once the
+ * foreground location is granted. The built-in dependencies only apply from the API level the
+ * system enforces them on.
+ */
+final class RequestPlanner {
+
+    private static final String ACCESS_FINE_LOCATION = "android.permission.ACCESS_FINE_LOCATION";
+    private static final String ACCESS_COARSE_LOCATION = "android.permission.ACCESS_COARSE_LOCATION";
+    private static final String ACCESS_BACKGROUND_LOCATION = "android.permission.ACCESS_BACKGROUND_LOCATION";
+    private static final String BODY_SENSORS = "android.permission.BODY_SENSORS";
+    private static final String BODY_SENSORS_BACKGROUND = "android.permission.BODY_SENSORS_BACKGROUND";
+
+    // Same values as android.os.Build.VERSION_CODES.
+    private static final int SDK_Q = 29;
+    private static final int SDK_TIRAMISU = 33;
+    // Added dependencies apply on every API level.
+    private static final int ANY_SDK = 0;
+
+    // Dependencies of the dependent permissions, one of their prerequisites must be granted.
+    private static final Map<String, Dependency> sDependencies = new ConcurrentHashMap<>();
+
+    static {
+        resetDependencies();
+    }
+
+    private RequestPlanner() {
+    }
+
+    /**
+     * Requests the permission after its prerequisites when they are requested together, and
+     * only if one of them is granted. Replaces its previous prerequisites.
+     */
+    static synchronized void addDependency(@NonNull String permission, @NonNull String... prerequisites) {
+        if (prerequisites.length == 0) {
+            throw new IllegalArgumentException("A permission dependency requires at least one prerequisite");
+        }
+        for (String prerequisite : prerequisites) {
+            if (dependsOn(prerequisite, permission)) {
+                throw new IllegalArgumentException("Cyclic dependency between " + permission + " and " + prerequisite);
+            }
+        }
+        sDependencies.put(permission, new Dependency(prerequisites.clone(), ANY_SDK));
+    }
+
+    private static boolean dependsOn(String permission, String prerequisite) {
+        if (permission.equals(prerequisite)) {
+            return true;
+        }
+        Dependency dependency = sDependencies.get(permission);
+        if (dependency != null) {
+            for (String p : dependency.mPrerequisites) {
+                if (dependsOn(p, prerequisite)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static synchronized void resetDependencies() {
+        sDependencies.clear();
+        sDependencies.put(ACCESS_BACKGROUND_LOCATION,
+                new Dependency(new String[]{ACCESS_FINE_LOCATION, ACCESS_COARSE_LOCATION}, SDK_Q));
+        sDependencies.put(BODY_SENSORS_BACKGROUND, new Dependency(new String[]{BODY_SENSORS}, SDK_TIRAMISU));
+    }
+
+    /**
+     * Returns the prerequisites of the permission on the API level, or null if it has none.
+     */
+    @Nullable
+    static String[] getPrerequisites(@NonNull String permission, int sdkInt) {
+        Dependency dependency = sDependencies.get(permission);
+        return dependency != null && sdkInt >= dependency.mMinSdk ? dependency.mPrerequisites : null;
+    }
+
+    /**
+     * Returns the stages of the request on the API level in order, each permission in the stage
+     * after the last of its prerequisites, or null if it can be requested at once.
+     */
+    @Nullable
+    static List<String[]> plan(@NonNull String[] permissions, int sdkInt) {
+        if (!hasRequestedPrerequisite(permissions, sdkInt)) {
+            return null;
+        }
+        Map<String, Integer> stages = new HashMap<>(permissions.length * 2);
+        int stageCount = 0;
+        for (String permission : permissions) {
+            stageCount = Math.max(stageCount, stageOf(permission, permissions, sdkInt, stages) + 1);
+        }
+        List<List<String>> stageLists = new ArrayList<>(stageCount);
+        for (int i = 0; i < stageCount; i++) {
+            stageLists.add(new ArrayList<String>());
+        }
+        for (String permission : permissions) {
+            stageLists.get(stages.get(permission)).add(permission);
+        }
+        List<String[]> plan = new ArrayList<>(stageCount);
+        for (List<String> stage : stageLists) {
+            plan.add(stage.toArray(new String[stage.size()]));
+        }
+        return plan;
+    }
+
+    // Most requests have no dependent permission, checked without allocating.
+    private static boolean hasRequestedPrerequisite(String[] permissions, int sdkInt) {
+        for (String permission : permissions) {
+            String[] prerequisites = getPrerequisites(permission, sdkInt);
+            if (prerequisites != null) {
+                for (String prerequisite : prerequisites) {
+                    if (contains(permissions, prerequisite)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int stageOf(String permission, String[] permissions, int sdkInt, Map<String, Integer> stages) {
+        Integer stage = stages.get(permission);
+        if (stage != null) {
+            return stage;
+        }
+        int result = 0;
+        String[] prerequisites = getPrerequisites(permission, sdkInt);
+        if (prerequisites != null) {
+            for (String prerequisite : prerequisites) {
+                if (contains(permissions, prerequisite)) {
+                    result = Math.max(result, stageOf(prerequisite, permissions, sdkInt, stages) + 1);
+                }
+            }
+        }
+        stages.put(permission, result);
+        return result;
+    }
+
+    private static boolean contains(String[] permissions, String permission) {
+        for (String p : permissions) {
+            if (p.equals(permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Dependency {
+        final String[] mPrerequisites;
+        // Lowest API level the dependency applies on.
+        final int mMinSdk;
+
+        Dependency(String[] prerequisites, int minSdk) {
+            mPrerequisites = prerequisites;
+            mMinSdk = minSdk;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.tbruyelle.rxpermissions3;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.rxjava3.subjects.PublishSubject;
+
+/**
+ * Permission requests in flight, recent results and permission states of the backends sharing
+ * the same dialogs, free of any Android dependency.
+ * <p>
+ * A permission already pending reuses the same subject, so it is requested only once, and the
+ * result received by any of the backends is delivered to every subscriber.
+ */
+public class RequestRegistry implements PendingRequests {
+
+    // Upper bound of the retained results, the oldest ones are evicted first.
+    private static final int MAX_RETAINED_RESULTS = 64;
+
+    // Contains all the current permission requests.
+    // Once granted or denied, they are removed from it.
+    private final ConcurrentHashMap<String, PendingRequest> mRequests = new ConcurrentHashMap<>();
+    // Results of the recent requests, in insertion order, guarded by this.
+    private final LinkedHashMap<String, RetainedResult> mResults = new LinkedHashMap<String, RetainedResult>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RetainedResult> eldest) {
+            return size() > MAX_RETAINED_RESULTS;
+        }
+    };
+    private volatile long mRetentionMillis;
+    // Granted and revoked states of the permissions, valid until the next resume or result.
+    private final PermissionStateCache mStateCache = new PermissionStateCache();
+    private volatile boolean mIndexEnabled;
+    private final GrantStateMonitor mStateMonitor = new GrantStateMonitor();
+    private final DialogQueue mDialogQueue = new DialogQueue();
+
+    @Override
+    public PendingRequest getRequest(@NonNull String permission) {
+        return mRequests.get(permission);
+    }
+
+    @Override
+    public PendingRequest putRequestIfAbsent(@NonNull String permission, @NonNull PendingRequest request) {
+        return mRequests.putIfAbsent(permission, request);
+    }
+
+    @Override
+    public boolean removeRequest(@NonNull PendingRequest request) {
+        return mRequests.remove(request.getPermission(), request);
+    }
+
+    @Override
+    public void onRequestEvicted(@NonNull String permission, boolean timedOut) {
+        mDialogQueue.onRequestEvicted(permission, timedOut, this);
+    }
+
+    public PublishSubject<Permission> getSubject(@NonNull String permission) {
+        PendingRequest request = mRequests.get(permission);
+        return request != null ? request.getSubject() : null;
+    }
+
+    public void putSubject(@NonNull String permission, @NonNull PublishSubject<Permission> subject) {
+        mRequests.put(permission, new PendingRequest(permission, subject));
+    }
+
+    @NonNull
+    GrantStateMonitor getStateMonitor() {
+        return mStateMonitor;
+    }
+
+    /**
+     * Reads the states of all the declared permissions at once, when the host supports it.
+     */
+    void setIndexEnabled(boolean enabled) {
+        mIndexEnabled = enabled;
+        invalidateStates();
+    }
+
+    boolean isIndexEnabled() {
+        return mIndexEnabled;
+    }
+
+    /**
+     * Forgets the cached states, the next checks will query the system again.
+     */
+    void invalidateStates() {
+        mStateCache.invalidate();
+    }
+
+    /**
+     * Delivers the results received by a backend to the pending requests, denies the permissions
+     * of its dialog the system returned no result for, then dispatches the next queued dialog.
+     */
+    void onRequestPermissionsResult(@NonNull PermissionBackend backend, @NonNull PermissionResultBatch results,
+                                    @NonNull PermissionsMetrics metrics) {
+        // Null for the late results of a dialog released meanwhile, they don't finish the current one.
+        String[] requested = mDialogQueue.onResultReceived(results);
+        invalidateStates();
+        PermissionsLogger logger = backend.getLogger();
+        for (int i = 0, size = results.size(); i < size; i++) {
+            logger.log(PermissionsLogger.EVENT_RESULT, results.getPermission(i), results.isGranted(i) ? 1 : 0);
+            if (isQueued(results.getPermission(i))) {
+                // Asked again once the request of this dialog was disposed, it waits for its own.
+                continue;
+            }
+            if (!deliverResult(results, i)) {
+                // No subject found, the request may have been disposed or timed out.
+                onUnexpectedResult(results.getPermission(i));
+                continue;
+            }
+            if (metrics != PermissionsMetrics.NONE) {
+                metrics.onResultDelivered(results.getPermission(i), results.isGranted(i), System.nanoTime());
+            }
+        }
+        if (requested != null) {
+            for (String permission : requested) {
+                if (!results.contains(permission) && !isQueued(permission)) {
+                    // The dialog was interrupted, the system returned no result for it.
+                    cancelRequest(permission, results);
+                }
+            }
+            // Subscribers may have requested other permissions in reaction, they wait in the queue.
+            mDialogQueue.onDialogFinished(backend);
+        }
+    }
+
+    private boolean isQueued(@NonNull String permission) {
+        PendingRequest request = mRequests.get(permission);
+        return request != null && mDialogQueue.isQueued(request);
+    }
+
+    /**
+     * Called for a result no request was pending for anymore.
+     */
+    void onUnexpectedResult(@NonNull String permission) {
+    }
+
+    /**
+     * Called for each result received, once its pending request is looked up. Its rationale
+     * flag is only to be read if the outcome is actually persisted.
+     */
+    void recordOutcome(@NonNull PermissionResultBatch results, int index) {
+    }
+
+    @VisibleForTesting
+    boolean deliverResult(@NonNull String permission, boolean granted, boolean shouldShowRequestPermissionRationale) {
+        PermissionResultBatch results = new PermissionResultBatch(new String[]{permission},
+                new int[]{granted ? PermissionResultBatch.PERMISSION_GRANTED : PermissionResultBatch.PERMISSION_DENIED});
+        if (shouldShowRequestPermissionRationale) {
+            results.setShouldShowRequestPermissionRationale(0);
+        }
+        return deliverResult(results, 0);
+    }
+
+    /**
+     * Delivers the result of a permission request to the subscribers of the pending request.
+     * <p>
+     * Its rationale flag is only read when the result has subscribers or an outcome store
+     * persists it.
+     *
+     * @return false if no request was pending for the permission
+     */
+    boolean deliverResult(@NonNull PermissionResultBatch results, int index) {
+        String permission = results.getPermission(index);
+        PendingRequest request = mRequests.remove(permission);
+        recordOutcome(results, index);
+        if (request == null) {
+            return false;
+        }
+        Permission result = Permission.of(permission, results.isGranted(index), results.shouldShowRequestPermissionRationale(index));
+        retainResult(result);
+        request.getSubject().onNext(result);
+        request.getSubject().onComplete();
+        return true;
+    }
+
+    /**
+     * Denies the pending request of a permission the system returned no result for, because
+     * its dialog was interrupted. The denial is neither retained nor persisted, the next request
+     * of the permission asks again. The rationale flag is read from the results only if a request
+     * was pending.
+     *
+     * @return false if no request was pending for the permission
+     */
+    boolean cancelRequest(@NonNull String permission, @NonNull PermissionResultBatch results) {
+        PendingRequest request = mRequests.remove(permission);
+        if (request == null) {
+            return false;
+        }
+        request.getSubject().onNext(Permission.of(permission, false, results.shouldShowRequestPermissionRationale(permission)));
+        request.getSubject().onComplete();
+        return true;
+    }
+
+    /**
+     * Denies the requests of the dialog shown by a backend whose host is destroyed, as nobody
+     * will deliver its result. Like an interrupted dialog, the next request asks again.
+     */
+    void onBackendFinished(@NonNull PermissionBackend backend) {
+        PendingRequest[] requests = mDialogQueue.onBackendFinished(backend);
+        if (requests == null) {
+            return;
+        }
+        for (PendingRequest request : requests) {
+            // Requests made since then for the same permissions wait for their own dialog.
+            if (mRequests.remove(request.getPermission(), request)) {
+                request.getSubject().onNext(Permission.of(request.getPermission(), false, false));
+                request.getSubject().onComplete();
+            }
+        }
+    }
+
+    @NonNull
+    DialogQueue getDialogQueue() {
+        return mDialogQueue;
+    }
+
+    @NonNull
+    PermissionStateCache getStateCache() {
+        return mStateCache;
+    }
+
+    /**
+     * Keeps the results for the given duration, 0 to stop retaining them.
+     */
+    synchronized void setRetention(long retentionMillis) {
+        mRetentionMillis = retentionMillis;
+        if (retentionMillis <= 0) {
+            mResults.clear();
+        }
+    }
+
+    private synchronized void retainResult(@NonNull Permission permission) {
+        if (mRetentionMillis <= 0) {
+            return;
+        }
+        long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        evictExpiredResults(now);
+        // Re-insert so the entry moves to the end of the eviction order
+        mResults.remove(permission.name);
+        mResults.put(permission.name, new RetainedResult(permission, now + mRetentionMillis));
+    }
+
+    /**
+     * Returns the retained result of the permission, or null if there is none or it expired.
+     */
+    @Override
+    public synchronized Permission getRetainedResult(@NonNull String permission) {
+        RetainedResult result = mResults.get(permission);
+        if (result == null) {
+            return null;
+        }
+        if (result.mExpiresAt <= TimeUnit.NANOSECONDS.toMillis(System.nanoTime())) {
+            mResults.remove(permission);
+            return null;
+        }
+        return result.mPermission;
+    }
+
+    private void evictExpiredResults(long now) {
+        Iterator<RetainedResult> iterator = mResults.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().mExpiresAt <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets everything, nobody will deliver the pending results anymore.
+     */
+    void clear() {
+        mRequests.clear();
+        synchronized (this) {
+            mResults.clear();
+        }
+        mDialogQueue.clear();
+    }
+
+    private static final class RetainedResult {
+        final Permission mPermission;
+        final long mExpiresAt;
+
+        RetainedResult(Permission permission, long expiresAt) {
+            mPermission = permission;
+            mExpiresAt = expiresAt;
+        }
+    }
+}
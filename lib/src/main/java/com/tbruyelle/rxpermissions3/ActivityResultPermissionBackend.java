@@ -0,0 +1,152 @@
+package com.tbruyelle.rxpermissions3;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.activity.result.ActivityResultCallback;
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.ActivityResultRegistry;
+import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import androidx.core.app.ActivityCompat;
+import androidx.fragment.app.FragmentActivity;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import java.util.Map;
+
+/**
+ * Backend requesting the permissions through the {@link ActivityResultRegistry} of the activity,
+ * without adding any fragment to the host.
+ */
+class ActivityResultPermissionBackend implements PermissionBackend,
+        ActivityResultCallback<Map<String, Boolean>>, LifecycleEventObserver {
+
+    // The backend of each activity registers the same key, so the results of a request made
+    // before a configuration change are delivered to the backend of the new activity.
+    private static final String KEY = "com.tbruyelle.rxpermissions3.RxPermissions";
+
+    private final FragmentActivity mActivity;
+    private final ActivityResultLauncher<String[]> mLauncher;
+    // Permission requests in flight and permission states, shared with the other backends of the host.
+    private final PendingRequestRegistry mRegistry;
+    private final RequestCoalescer mCoalescer = new RequestCoalescer(new MainThreadTimer());
+    private final PermissionsLogger mLogger = new PermissionsLogger(new PermissionsLogger.Printer() {
+        @Override
+        public void println(String message) {
+            Log.d(RxPermissions.TAG, message);
+        }
+    });
+    private PermissionsMetrics mMetrics = PermissionsMetrics.NONE;
+
+    /**
+     * Returns the backend of the activity, registering it on first use. A single backend is
+     * registered per activity, as a key only delivers the results to its last registration.
+     */
+    @NonNull
+    static ActivityResultPermissionBackend get(@NonNull FragmentActivity activity) {
+        PendingRequestRegistry registry = PendingRequestRegistry.get(activity);
+        ActivityResultPermissionBackend backend = registry.getActivityResultBackend(activity);
+        if (backend == null) {
+            backend = new ActivityResultPermissionBackend(activity, activity.getActivityResultRegistry());
+            registry.putActivityResultBackend(activity, backend);
+        }
+        return backend;
+    }
+
+    @VisibleForTesting
+    ActivityResultPermissionBackend(@NonNull FragmentActivity activity, @NonNull ActivityResultRegistry activityResultRegistry) {
+        mActivity = activity;
+        mRegistry = PendingRequestRegistry.get(activity);
+        mLauncher = activityResultRegistry.register(KEY, new ActivityResultContracts.RequestMultiplePermissions(), this);
+        activity.getLifecycle().addObserver(this);
+    }
+
+    @Override
+    public void onStateChanged(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+        if (event == Lifecycle.Event.ON_RESUME) {
+            // The user may have changed the permissions from the settings while we were paused.
+            mRegistry.onHostResumed(mActivity);
+            mRegistry.getStateMonitor().refresh(this::isGranted);
+        } else if (event == Lifecycle.Event.ON_DESTROY) {
+            if (mActivity.isFinishing()) {
+                // The result of a dialog still showing won't be delivered to anyone.
+                mRegistry.onBackendFinished(this);
+            }
+            mLauncher.unregister();
+            mRegistry.removeActivityResultBackend(mActivity, this);
+            source.getLifecycle().removeObserver(this);
+        }
+    }
+
+    @Override
+    public void enqueueRequest(@NonNull String[] permissions, int priority) {
+        mCoalescer.request(permissions, priority, this);
+    }
+
+    @Override
+    public void dispatchRequestPermissions(@NonNull String[] permissions) {
+        if (mMetrics != PermissionsMetrics.NONE) {
+            mMetrics.onDialogDispatched(permissions, System.nanoTime());
+        }
+        mLauncher.launch(permissions);
+    }
+
+    @Override
+    public void setCoalescingWindow(long windowMillis) {
+        mCoalescer.setWindow(windowMillis, this);
+    }
+
+    @Override
+    public void onActivityResult(Map<String, Boolean> result) {
+        String[] permissions = new String[result.size()];
+        int[] grantResults = new int[permissions.length];
+        int i = 0;
+        for (Map.Entry<String, Boolean> entry : result.entrySet()) {
+            permissions[i] = entry.getKey();
+            boolean granted = Boolean.TRUE.equals(entry.getValue());
+            grantResults[i] = granted ? PermissionResultBatch.PERMISSION_GRANTED : PermissionResultBatch.PERMISSION_DENIED;
+            i++;
+        }
+        // The rationales are only read for the denied permissions delivered to subscribers.
+        onRequestPermissionsResult(new PermissionResultBatch(permissions, grantResults,
+                permission -> ActivityCompat.shouldShowRequestPermissionRationale(mActivity, permission)));
+    }
+
+    @Override
+    public void onRequestPermissionsResult(PermissionResultBatch results) {
+        mRegistry.onRequestPermissionsResult(this, results, mMetrics);
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.M)
+    public boolean isGranted(String permission) {
+        return mRegistry.isGranted(mActivity, permission, mMetrics);
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.M)
+    public boolean isRevoked(String permission) {
+        return mRegistry.isRevoked(mActivity, permission, mMetrics);
+    }
+
+    @Override
+    @NonNull
+    public PendingRequestRegistry getRegistry() {
+        return mRegistry;
+    }
+
+    @Override
+    public void setMetrics(@NonNull PermissionsMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    @Override
+    @NonNull
+    public PermissionsLogger getLogger() {
+        return mLogger;
+    }
+}
@@ -0,0 +1,42 @@
+package com.tbruyelle.rxpermissions3;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Ends the coalescing windows on the main thread, on the next frame when the platform exposes
+ * the {@link Choreographer}.
+ */
+class MainThreadTimer implements RequestCoalescer.Timer {
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void postDelayed(@NonNull Runnable task, long delayMillis) {
+        mHandler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void postOnNextFrame(@NonNull Runnable task) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postFrameCallback(task);
+        } else {
+            mHandler.post(task);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void postFrameCallback(@NonNull final Runnable task) {
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                task.run();
+            }
+        });
+    }
+}
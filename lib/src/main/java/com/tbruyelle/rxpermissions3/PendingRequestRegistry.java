@@ -0,0 +1,224 @@
+package com.tbruyelle.rxpermissions3;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.fragment.app.FragmentActivity;
+import androidx.lifecycle.ViewModel;
+import androidx.lifecycle.ViewModelProvider;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Permission requests in flight and permission states, shared by all the backends of a host.
+ * <p>
+ * A permission already pending anywhere in the host reuses the same subject, so it is requested
+ * only once, and the result received by any of the backends is delivered to every subscriber.
+ * <p>
+ * The registry is scoped to the activity by default, and survives its configuration changes.
+ * It can be scoped to the application with {@link RxPermissions#setRequestScope(int)}.
+ */
+public class PendingRequestRegistry extends RequestRegistry {
+
+    private static final PendingRequestRegistry sApplicationRegistry = new PendingRequestRegistry();
+    private static int sScope = RxPermissions.SCOPE_ACTIVITY;
+    // Null while the outcomes are not persisted.
+    private static volatile PermissionOutcomeStore sOutcomeStore;
+
+    // Grant states of all the declared permissions, null until loaded or when invalidated.
+    private volatile PermissionIndex mIndex;
+    // Whether the states are snapshotted ahead of the checks, see RxPermissions#install.
+    private volatile boolean mWarmUp;
+    private boolean mSnapshotScheduled;
+    // Backend of each activity of the scope using the ActivityResult API, accessed on the main thread.
+    private final Map<FragmentActivity, ActivityResultPermissionBackend> mActivityResultBackends = new HashMap<>();
+
+    @NonNull
+    static PendingRequestRegistry get(@NonNull FragmentActivity activity) {
+        if (sScope == RxPermissions.SCOPE_APPLICATION) {
+            return sApplicationRegistry;
+        }
+        return new ViewModelProvider(activity).get(Holder.class).mRegistry;
+    }
+
+    static void setScope(int scope) {
+        if (scope != RxPermissions.SCOPE_ACTIVITY && scope != RxPermissions.SCOPE_APPLICATION) {
+            throw new IllegalArgumentException("Unknown scope " + scope);
+        }
+        sScope = scope;
+    }
+
+    static void setOutcomeStore(@Nullable PermissionOutcomeStore store) {
+        sOutcomeStore = store;
+    }
+
+    /**
+     * Returns the grant states of the declared permissions, loading them if needed, or null if
+     * the index is disabled or can't be loaded.
+     */
+    @Nullable
+    PermissionIndex getPermissionIndex(@NonNull Context context) {
+        if (!isIndexEnabled()) {
+            return null;
+        }
+        PermissionIndex index = mIndex;
+        if (index == null) {
+            index = PermissionIndex.load(context);
+            mIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Forgets the cached states and the index, the next checks will query the system again.
+     */
+    @Override
+    void invalidateStates() {
+        super.invalidateStates();
+        mIndex = null;
+    }
+
+    void setWarmUp(boolean warmUp) {
+        mWarmUp = warmUp;
+    }
+
+    /**
+     * Forgets the cached states when a host resumes, as the user may have changed the
+     * permissions from the settings in the meantime. Once warmed up, the states of the declared
+     * permissions are snapshotted again as soon as the main thread is idle, ahead of the next
+     * checks.
+     */
+    void onHostResumed(@NonNull final Context context) {
+        invalidateStates();
+        if (!mWarmUp || mSnapshotScheduled) {
+            return;
+        }
+        mSnapshotScheduled = true;
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                mSnapshotScheduled = false;
+                snapshotStates(context);
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Caches the states of all the declared permissions, read in a single call to the package
+     * manager.
+     */
+    void snapshotStates(@NonNull Context context) {
+        PermissionIndex index = PermissionIndex.load(context);
+        if (index == null) {
+            return;
+        }
+        index.putStates(getStateCache());
+        if (isIndexEnabled()) {
+            mIndex = index;
+        }
+    }
+
+    /**
+     * Returns true if the permission is granted, from the cached states, the index or the system.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    boolean isGranted(@NonNull Context context, @NonNull String permission, @NonNull PermissionsMetrics metrics) {
+        Boolean granted = getStateCache().getGranted(permission);
+        if (granted == null) {
+            PermissionIndex index = getPermissionIndex(context);
+            granted = index != null
+                    ? index.isGranted(permission)
+                    : context.checkSelfPermission(permission) == PackageManager.PERMISSION_GRANTED;
+            getStateCache().putGranted(permission, granted);
+        } else if (metrics != PermissionsMetrics.NONE) {
+            metrics.onCacheHit(permission, PermissionsMetrics.CHECK_GRANTED, System.nanoTime());
+        }
+        return granted;
+    }
+
+    /**
+     * Returns true if the permission is revoked by a policy, from the cached states, the index or
+     * the system.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    boolean isRevoked(@NonNull Context context, @NonNull String permission, @NonNull PermissionsMetrics metrics) {
+        Boolean revoked = getStateCache().getRevoked(permission);
+        if (revoked == null) {
+            PermissionIndex index = getPermissionIndex(context);
+            if (index != null && !index.isDeclared(permission)) {
+                // Never declared, the system would deny it without asking.
+                revoked = true;
+            } else if (index != null && index.isGranted(permission)) {
+                revoked = false;
+            } else {
+                revoked = context.getPackageManager().isPermissionRevokedByPolicy(permission, context.getPackageName());
+            }
+            getStateCache().putRevoked(permission, revoked);
+        } else if (metrics != PermissionsMetrics.NONE) {
+            metrics.onCacheHit(permission, PermissionsMetrics.CHECK_REVOKED, System.nanoTime());
+        }
+        return revoked;
+    }
+
+    @Override
+    void onUnexpectedResult(@NonNull String permission) {
+        Log.e(RxPermissions.TAG, "RxPermissions.onRequestPermissionsResult invoked but didn't find the corresponding permission request.");
+    }
+
+    @Override
+    void recordOutcome(@NonNull PermissionResultBatch results, int index) {
+        PermissionOutcomeStore outcomeStore = sOutcomeStore;
+        if (outcomeStore != null) {
+            outcomeStore.record(results.getPermission(index), results.isGranted(index),
+                    results.shouldShowRequestPermissionRationale(index));
+        }
+    }
+
+    @Nullable
+    ActivityResultPermissionBackend getActivityResultBackend(@NonNull FragmentActivity activity) {
+        return mActivityResultBackends.get(activity);
+    }
+
+    void putActivityResultBackend(@NonNull FragmentActivity activity, @NonNull ActivityResultPermissionBackend backend) {
+        mActivityResultBackends.put(activity, backend);
+    }
+
+    void removeActivityResultBackend(@NonNull FragmentActivity activity, @NonNull ActivityResultPermissionBackend backend) {
+        if (mActivityResultBackends.get(activity) == backend) {
+            mActivityResultBackends.remove(activity);
+        }
+    }
+
+    @Override
+    void clear() {
+        super.clear();
+        mActivityResultBackends.clear();
+    }
+
+    /**
+     * Scopes the registry of an activity to its {@link ViewModel}, so it survives configuration
+     * changes.
+     */
+    public static final class Holder extends ViewModel {
+
+        final PendingRequestRegistry mRegistry = new PendingRequestRegistry();
+
+        public Holder() {
+        }
+
+        @Override
+        protected void onCleared() {
+            // The host is finishing, nobody will deliver the pending results anymore.
+            mRegistry.clear();
+        }
+    }
+}
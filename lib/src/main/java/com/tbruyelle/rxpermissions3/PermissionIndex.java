@@ -0,0 +1,77 @@
+package com.tbruyelle.rxpermissions3;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Grant states of all the permissions declared by the application, read from its
+ * {@link PackageInfo} in a single call to the package manager.
+ */
+final class PermissionIndex {
+
+    // Declared permissions and whether they are granted.
+    private final Map<String, Boolean> mGranted;
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    PermissionIndex(@NonNull PackageInfo packageInfo) {
+        String[] permissions = packageInfo.requestedPermissions;
+        int[] flags = packageInfo.requestedPermissionsFlags;
+        int size = permissions == null ? 0 : permissions.length;
+        mGranted = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            boolean granted = flags != null && (flags[i] & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0;
+            mGranted.put(permissions[i], granted);
+        }
+    }
+
+    /**
+     * Reads the index of the application, or returns null if its package can't be read.
+     */
+    @Nullable
+    static PermissionIndex load(@NonNull Context context) {
+        try {
+            PackageInfo packageInfo = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), PackageManager.GET_PERMISSIONS);
+            return new PermissionIndex(packageInfo);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(RxPermissions.TAG, "Unable to read the permissions of the application, checking them one by one.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the application declares the permission in its manifest. An undeclared
+     * permission is always denied, without showing the dialog.
+     */
+    boolean isDeclared(@NonNull String permission) {
+        return mGranted.containsKey(permission);
+    }
+
+    boolean isGranted(@NonNull String permission) {
+        return Boolean.TRUE.equals(mGranted.get(permission));
+    }
+
+    /**
+     * Puts the granted states of the declared permissions in the cache, and their revoked state
+     * when it follows from it.
+     */
+    void putStates(@NonNull PermissionStateCache stateCache) {
+        for (Map.Entry<String, Boolean> entry : mGranted.entrySet()) {
+            boolean granted = entry.getValue();
+            stateCache.putGranted(entry.getKey(), granted);
+            if (granted) {
+                stateCache.putRevoked(entry.getKey(), false);
+            }
+        }
+    }
+}
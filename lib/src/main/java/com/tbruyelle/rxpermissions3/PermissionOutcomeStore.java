@@ -0,0 +1,105 @@
+package com.tbruyelle.rxpermissions3;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent store of the last outcome of the system request of each permission, so the UI can
+ * decide at cold start, without attaching the fragment or requesting the permission, whether a
+ * permission was permanently denied.
+ * <p>
+ * The outcomes are read once when the store is opened, and written after each result once the
+ * store is set with {@link RxPermissions#setOutcomeStore(PermissionOutcomeStore)}:
+ * <pre>{@code
+ * PermissionOutcomeStore store = PermissionOutcomeStore.open(context);
+ * RxPermissions.setOutcomeStore(store);
+ * PermissionOutcome outcome = store.getOutcome(Manifest.permission.CAMERA);
+ * if (outcome != null && outcome.neverAskAgain) {
+ *     // Send the user to the settings instead of requesting the permission.
+ * }
+ * }</pre>
+ */
+public class PermissionOutcomeStore {
+
+    private static final String PREFERENCES_NAME = "com.tbruyelle.rxpermissions3.outcomes";
+
+    // Each outcome is stored as a single long: its timestamp, shifted by the flags below.
+    private static final long FLAG_GRANTED = 1;
+    private static final long FLAG_RATIONALE = 1 << 1;
+    private static final int FLAG_BITS = 2;
+
+    private static PermissionOutcomeStore sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+    private final Map<String, PermissionOutcome> mOutcomes = new ConcurrentHashMap<>();
+
+    @VisibleForTesting
+    PermissionOutcomeStore(@NonNull Context context, @NonNull SharedPreferences preferences) {
+        mContext = context;
+        mPreferences = preferences;
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Long) {
+                mOutcomes.put(entry.getKey(), decode(entry.getKey(), (Long) value));
+            }
+        }
+    }
+
+    /**
+     * Returns the store of the application, reading the stored outcomes on the first call.
+     * Open it early, typically in {@code Application.onCreate}, as it reads from the disk.
+     */
+    @NonNull
+    public static synchronized PermissionOutcomeStore open(@NonNull Context context) {
+        if (sInstance == null) {
+            Context applicationContext = context.getApplicationContext();
+            sInstance = new PermissionOutcomeStore(applicationContext,
+                    applicationContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the last outcome of the permission, or null if it was never requested or if its
+     * grant state changed since, for instance in the settings. The permission then needs to be
+     * requested to know its outcome.
+     */
+    @Nullable
+    public PermissionOutcome getOutcome(@NonNull String permission) {
+        PermissionOutcome outcome = mOutcomes.get(permission);
+        if (outcome == null) {
+            return null;
+        }
+        boolean granted = mContext.checkPermission(permission, Process.myPid(), Process.myUid())
+                == PackageManager.PERMISSION_GRANTED;
+        return outcome.granted == granted ? outcome : null;
+    }
+
+    void record(@NonNull String permission, boolean granted, boolean shouldShowRequestPermissionRationale) {
+        PermissionOutcome outcome = new PermissionOutcome(permission, granted,
+                shouldShowRequestPermissionRationale, System.currentTimeMillis());
+        mOutcomes.put(permission, outcome);
+        mPreferences.edit().putLong(permission, encode(outcome)).apply();
+    }
+
+    private static long encode(PermissionOutcome outcome) {
+        return outcome.timestamp << FLAG_BITS
+                | (outcome.granted ? FLAG_GRANTED : 0)
+                | (outcome.shouldShowRequestPermissionRationale ? FLAG_RATIONALE : 0);
+    }
+
+    private static PermissionOutcome decode(String permission, long value) {
+        return new PermissionOutcome(permission, (value & FLAG_GRANTED) != 0,
+                (value & FLAG_RATIONALE) != 0, value >>> FLAG_BITS);
+    }
+}
@@ -0,0 +1,70 @@
+package com.tbruyelle.rxpermissions3;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Build;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.fragment.app.FragmentActivity;
+
+/**
+ * Prepares each {@link FragmentActivity} of the application for its permission requests, once
+ * installed with {@link RxPermissions#install(Application, int)}.
+ * <p>
+ * The states of the declared permissions are snapshotted whenever the main thread is idle after
+ * a resume, and the headless fragment of the fragment backend is attached when the activity
+ * starts, before its first frame, so the first checks and requests run from warm state.
+ */
+class PermissionsWarmUp implements Application.ActivityLifecycleCallbacks {
+
+    private final int mBackend;
+
+    PermissionsWarmUp(int backend) {
+        mBackend = backend;
+    }
+
+    @Override
+    public void onActivityCreated(@NonNull Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityStarted(@NonNull Activity activity) {
+        if (!(activity instanceof FragmentActivity)) {
+            return;
+        }
+        FragmentActivity fragmentActivity = (FragmentActivity) activity;
+        if (mBackend == RxPermissions.BACKEND_FRAGMENT) {
+            // Not on create, the fragments of the activity are not restored yet at that point.
+            RxPermissions.getRxPermissionsFragment(fragmentActivity.getSupportFragmentManager());
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            PendingRequestRegistry.get(fragmentActivity).setWarmUp(true);
+        }
+    }
+
+    @Override
+    public void onActivityResumed(@NonNull Activity activity) {
+        // Schedules the snapshot even if no backend of the activity exists yet.
+        if (activity instanceof FragmentActivity && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            FragmentActivity fragmentActivity = (FragmentActivity) activity;
+            PendingRequestRegistry.get(fragmentActivity).onHostResumed(fragmentActivity);
+        }
+    }
+
+    @Override
+    public void onActivityPaused(@NonNull Activity activity) {
+    }
+
+    @Override
+    public void onActivityStopped(@NonNull Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(@NonNull Activity activity, @NonNull Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(@NonNull Activity activity) {
+    }
+}
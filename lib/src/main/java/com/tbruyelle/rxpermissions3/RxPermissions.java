@@ -16,229 +16,490 @@ package com.tbruyelle.rxpermissions3;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.app.Application;
 import android.os.Build;
-import android.text.TextUtils;
+import android.os.Handler;
+import android.os.Looper;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import androidx.fragment.app.FragmentActivity;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
+import androidx.tracing.Trace;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import io.reactivex.rxjava3.core.Observable;
 import io.reactivex.rxjava3.core.ObservableSource;
-import io.reactivex.rxjava3.core.ObservableTransformer;
-import io.reactivex.rxjava3.functions.Function;
-import io.reactivex.rxjava3.subjects.PublishSubject;
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.functions.Action;
+import io.reactivex.rxjava3.functions.Predicate;
+import io.reactivex.rxjava3.functions.Supplier;
+import io.reactivex.rxjava3.schedulers.Schedulers;
 
-public class RxPermissions {
+public class RxPermissions extends BaseRxPermissions {
 
     static final String TAG = RxPermissions.class.getSimpleName();
-    static final Object TRIGGER = new Object();
+
+    private static final PermissionsTrace.Tracer ANDROIDX_TRACER = new PermissionsTrace.Tracer() {
+        @Override
+        public void beginSection(@NonNull String name) {
+            Trace.beginSection(name);
+        }
+
+        @Override
+        public void endSection() {
+            Trace.endSection();
+        }
+
+        @Override
+        public void beginAsyncSection(@NonNull String name, int cookie) {
+            Trace.beginAsyncSection(name, cookie);
+        }
+
+        @Override
+        public void endAsyncSection(@NonNull String name, int cookie) {
+            Trace.endAsyncSection(name, cookie);
+        }
+    };
+
+    /**
+     * Coalescing window which disables the coalescing, permissions are requested immediately.
+     */
+    public static final long NO_COALESCING = RequestCoalescer.NO_COALESCING;
+    /**
+     * Coalescing window which lasts until the next frame.
+     */
+    public static final long COALESCE_NEXT_FRAME = RequestCoalescer.COALESCE_NEXT_FRAME;
+
+    /**
+     * Backend requesting the permissions through a headless fragment added to the host.
+     */
+    public static final int BACKEND_FRAGMENT = 0;
+    /**
+     * Backend requesting the permissions through the {@code ActivityResultRegistry} of the
+     * activity, without adding any fragment.
+     */
+    public static final int BACKEND_ACTIVITY_RESULT = 1;
+
+    /**
+     * Pending permission requests are shared within an activity and its fragments.
+     */
+    public static final int SCOPE_ACTIVITY = 0;
+    /**
+     * Pending permission requests are shared within the whole application.
+     */
+    public static final int SCOPE_APPLICATION = 1;
+
+    /**
+     * Priority of the requests made for background features, their dialog waits for the
+     * user-initiated ones.
+     */
+    public static final int PRIORITY_BACKGROUND = BaseRxPermissions.PRIORITY_BACKGROUND;
+    /**
+     * Priority of the requests made in reaction to the user, the default.
+     */
+    public static final int PRIORITY_USER_INITIATED = BaseRxPermissions.PRIORITY_USER_INITIATED;
+
+    // Runs the tasks on the main thread, immediately if already on it.
+    private static final Scheduler MAIN_THREAD = Schedulers.from(new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                command.run();
+            } else {
+                mHandler.post(command);
+            }
+        }
+    });
+
+    // Application whose activities are warmed up, guarded by RxPermissions.class.
+    private static Application sWarmUpApplication;
 
     @VisibleForTesting
-    Lazy<RxPermissionsFragment> mRxPermissionsFragment;
+    Lazy<PermissionBackend> mBackend;
 
     public RxPermissions(@NonNull final FragmentActivity activity) {
-        mRxPermissionsFragment = getLazySingleton(activity.getSupportFragmentManager());
+        this(activity, BACKEND_FRAGMENT);
+    }
+
+    /**
+     * @param backend {@link #BACKEND_FRAGMENT} or {@link #BACKEND_ACTIVITY_RESULT}
+     */
+    public RxPermissions(@NonNull final FragmentActivity activity, int backend) {
+        if (backend == BACKEND_ACTIVITY_RESULT) {
+            // Registered right away, so the result of a request made before a configuration
+            // change is delivered as soon as the new activity starts.
+            final PermissionBackend activityResultBackend = ActivityResultPermissionBackend.get(activity);
+            mBackend = new Lazy<PermissionBackend>() {
+                @Override
+                public PermissionBackend get() {
+                    return activityResultBackend;
+                }
+            };
+        } else {
+            checkBackend(backend);
+            mBackend = getLazySingleton(activity.getSupportFragmentManager());
+        }
     }
 
     public RxPermissions(@NonNull final Fragment fragment) {
-        mRxPermissionsFragment = getLazySingleton(fragment.getChildFragmentManager());
+        this(fragment, BACKEND_FRAGMENT);
+    }
+
+    /**
+     * @param backend {@link #BACKEND_FRAGMENT} or {@link #BACKEND_ACTIVITY_RESULT}
+     */
+    public RxPermissions(@NonNull final Fragment fragment, int backend) {
+        if (backend == BACKEND_ACTIVITY_RESULT) {
+            mBackend = getLazyActivityResultBackend(fragment::requireActivity);
+        } else {
+            checkBackend(backend);
+            mBackend = getLazySingleton(fragment.getChildFragmentManager());
+        }
+    }
+
+    private static void checkBackend(int backend) {
+        if (backend != BACKEND_FRAGMENT) {
+            throw new IllegalArgumentException("Unknown backend " + backend);
+        }
     }
 
     @NonNull
-    private Lazy<RxPermissionsFragment> getLazySingleton(@NonNull final FragmentManager fragmentManager) {
-        return new Lazy<RxPermissionsFragment>() {
+    private Lazy<PermissionBackend> getLazySingleton(@NonNull final FragmentManager fragmentManager) {
+        return new LazyBackend() {
+
+            @Override
+            PermissionBackend create() {
+                return getRxPermissionsFragment(fragmentManager);
+            }
+
+        };
+    }
 
-            private RxPermissionsFragment rxPermissionsFragment;
+    @NonNull
+    private Lazy<PermissionBackend> getLazyActivityResultBackend(@NonNull final Lazy<FragmentActivity> activity) {
+        return new LazyBackend() {
 
             @Override
-            public synchronized RxPermissionsFragment get() {
-                if (rxPermissionsFragment == null) {
-                    rxPermissionsFragment = getRxPermissionsFragment(fragmentManager);
-                }
-                return rxPermissionsFragment;
+            PermissionBackend create() {
+                return ActivityResultPermissionBackend.get(activity.get());
             }
 
         };
     }
 
-    private RxPermissionsFragment getRxPermissionsFragment(@NonNull final FragmentManager fragmentManager) {
-        RxPermissionsFragment rxPermissionsFragment = findRxPermissionsFragment(fragmentManager);
-        boolean isNewInstance = rxPermissionsFragment == null;
-        if (isNewInstance) {
-            rxPermissionsFragment = new RxPermissionsFragment();
-            fragmentManager
-                    .beginTransaction()
-                    .add(rxPermissionsFragment, TAG)
-                    .commitNow();
+    static RxPermissionsFragment getRxPermissionsFragment(@NonNull final FragmentManager fragmentManager) {
+        PermissionsTrace.Tracer tracer = PermissionsTrace.begin(PermissionsTrace.SECTION_GET_FRAGMENT);
+        try {
+            RxPermissionsFragment rxPermissionsFragment = findRxPermissionsFragment(fragmentManager);
+            boolean isNewInstance = rxPermissionsFragment == null;
+            if (isNewInstance) {
+                rxPermissionsFragment = new RxPermissionsFragment();
+                fragmentManager
+                        .beginTransaction()
+                        .add(rxPermissionsFragment, TAG)
+                        .commitNow();
+            }
+            return rxPermissionsFragment;
+        } finally {
+            PermissionsTrace.end(tracer);
         }
-        return rxPermissionsFragment;
     }
 
-    private RxPermissionsFragment findRxPermissionsFragment(@NonNull final FragmentManager fragmentManager) {
+    private static RxPermissionsFragment findRxPermissionsFragment(@NonNull final FragmentManager fragmentManager) {
         return (RxPermissionsFragment) fragmentManager.findFragmentByTag(TAG);
     }
 
     public void setLogging(boolean logging) {
-        mRxPermissionsFragment.get().setLogging(logging);
+        mBackend.get().getLogger().setPrinting(logging);
     }
 
     /**
-     * Map emitted items from the source observable into {@code true} if permissions in parameters
-     * are granted, or {@code false} if not.
-     * <p>
-     * If one or several permissions have never been requested, invoke the related framework method
-     * to ask the user if he allows the permissions.
+     * Keeps the last {@code size} log events in memory, to be retrieved with {@link #dumpLog()}
+     * for instance in bug reports, whether logging is enabled or not. Disabled by default.
+     *
+     * @param size the number of events kept, 0 to stop keeping them
      */
-    @SuppressWarnings("WeakerAccess")
-    public <T> ObservableTransformer<T, Boolean> ensure(final String... permissions) {
-        return new ObservableTransformer<T, Boolean>() {
-            @Override
-            public ObservableSource<Boolean> apply(Observable<T> o) {
-                return request(o, permissions)
-                        // Transform Observable<Permission> to Observable<Boolean>
-                        .buffer(permissions.length)
-                        .flatMap(new Function<List<Permission>, ObservableSource<Boolean>>() {
-                            @Override
-                            public ObservableSource<Boolean> apply(List<Permission> permissions) {
-                                if (permissions.isEmpty()) {
-                                    // Occurs during orientation change, when the subject receives onComplete.
-                                    // In that case we don't want to propagate that empty list to the
-                                    // subscriber, only the onComplete.
-                                    return Observable.empty();
-                                }
-                                // Return true if all permissions are granted.
-                                for (Permission p : permissions) {
-                                    if (!p.granted) {
-                                        return Observable.just(false);
-                                    }
-                                }
-                                return Observable.just(true);
-                            }
-                        });
-            }
-        };
+    @SuppressWarnings("unused")
+    public void setLogBufferSize(int size) {
+        mBackend.get().getLogger().setBufferSize(size);
+    }
+
+    /**
+     * Returns the log events kept in memory, oldest first.
+     *
+     * @see #setLogBufferSize(int)
+     */
+    @SuppressWarnings("unused")
+    @NonNull
+    public String dumpLog() {
+        return mBackend.get().getLogger().dump();
     }
 
     /**
-     * Map emitted items from the source observable into {@link Permission} objects for each
-     * permission in parameters.
+     * Sends the events of the permission requests to the metrics, {@link PermissionsMetrics#NONE}
+     * by default.
      * <p>
-     * If one or several permissions have never been requested, invoke the related framework method
-     * to ask the user if he allows the permissions.
+     * Like the logging, the dialog and result events are reported by the host shared by the
+     * instances of an activity, so the last metrics set on one of them receives these events.
+     */
+    @SuppressWarnings("unused")
+    public void setMetrics(@NonNull PermissionsMetrics metrics) {
+        mMetrics = metrics;
+        mBackend.get().setMetrics(metrics);
+    }
+
+    /**
+     * Runs the permission checks on the scheduler, concurrently for the permissions of a request,
+     * instead of on the thread of the trigger. Only the system request then continues on the main
+     * thread. The checks run on the calling thread by default.
+     *
+     * @param scheduler the scheduler of the checks, for instance {@code Schedulers.io()}, or null
+     *                  to check on the calling thread
+     */
+    @SuppressWarnings("unused")
+    public void setCheckScheduler(Scheduler scheduler) {
+        mCheckScheduler = scheduler;
+    }
+
+    /**
+     * Delivers the results of the requests on the scheduler. By default they are delivered on the
+     * thread they are received, the main thread for the results of the system dialog.
+     *
+     * @param scheduler the scheduler of the results, or null to deliver them where received
+     */
+    @SuppressWarnings("unused")
+    public void setResultScheduler(Scheduler scheduler) {
+        mResultScheduler = scheduler;
+    }
+
+    /**
+     * Fails the requests whose result is not received within the timeout with a
+     * {@code TimeoutException}, and forgets them so the next request of their permissions shows
+     * the dialog again. Requests wait for their result without limit by default.
+     *
+     * @param timeout the timeout, 0 to wait without limit
+     */
+    @SuppressWarnings("unused")
+    public void setRequestTimeout(long timeout, @NonNull TimeUnit unit) {
+        setRequestTimeout(timeout, unit, Schedulers.computation());
+    }
+
+    /**
+     * Same as {@link #setRequestTimeout(long, TimeUnit)}, measuring the timeout on the scheduler.
      */
     @SuppressWarnings("WeakerAccess")
-    public <T> ObservableTransformer<T, Permission> ensureEach(final String... permissions) {
-        return new ObservableTransformer<T, Permission>() {
-            @Override
-            public ObservableSource<Permission> apply(Observable<T> o) {
-                return request(o, permissions);
-            }
-        };
+    public void setRequestTimeout(long timeout, @NonNull TimeUnit unit, @NonNull Scheduler scheduler) {
+        mTimeoutScheduler = scheduler;
+        mRequestTimeoutMillis = unit.toMillis(timeout);
     }
 
     /**
-     * Map emitted items from the source observable into one combined {@link Permission} object. Only if all permissions are granted,
-     * permission also will be granted. If any permission has {@code shouldShowRationale} checked, than result also has it checked.
+     * Prepares every {@link FragmentActivity} of the application for its permission requests
+     * made with the fragment backend, see {@link #install(Application, int)}.
+     */
+    @SuppressWarnings("unused")
+    public static void install(@NonNull Application application) {
+        install(application, BACKEND_FRAGMENT);
+    }
+
+    /**
+     * Prepares every {@link FragmentActivity} of the application for its permission requests,
+     * off the interaction path: the states of the declared permissions are read whenever the main
+     * thread is idle after a resume, and with {@link #BACKEND_FRAGMENT} the headless fragment is
+     * attached when the activity starts. The first request of a screen then runs from warm state.
      * <p>
-     * If one or several permissions have never been requested, invoke the related framework method
-     * to ask the user if he allows the permissions.
+     * Only applies to the activities started after the call, typically invoke it in
+     * {@code Application.onCreate}. Installing it several times has no effect.
+     *
+     * @param backend {@link #BACKEND_FRAGMENT} or {@link #BACKEND_ACTIVITY_RESULT}, the backend
+     *                the activities request permissions with
      */
-    public <T> ObservableTransformer<T, Permission> ensureEachCombined(final String... permissions) {
-        return new ObservableTransformer<T, Permission>() {
-            @Override
-            public ObservableSource<Permission> apply(Observable<T> o) {
-                return request(o, permissions)
-                        .buffer(permissions.length)
-                        .flatMap(new Function<List<Permission>, ObservableSource<Permission>>() {
-                            @Override
-                            public ObservableSource<Permission> apply(List<Permission> permissions) {
-                                if (permissions.isEmpty()) {
-                                    return Observable.empty();
-                                }
-                                return Observable.just(new Permission(permissions));
-                            }
-                        });
-            }
-        };
+    @SuppressWarnings("unused")
+    public static synchronized void install(@NonNull Application application, int backend) {
+        if (backend != BACKEND_ACTIVITY_RESULT) {
+            checkBackend(backend);
+        }
+        if (sWarmUpApplication == application) {
+            return;
+        }
+        sWarmUpApplication = application;
+        application.registerActivityLifecycleCallbacks(new PermissionsWarmUp(backend));
     }
 
     /**
-     * Request permissions immediately, <b>must be invoked during initialization phase
-     * of your application</b>.
+     * Adds trace sections around the permission checks and requests, and an async slice from
+     * each dialog to its result, visible in systrace and Perfetto. Disabled by default.
      */
-    @SuppressWarnings({"WeakerAccess", "unused"})
-    public Observable<Boolean> request(final String... permissions) {
-        return Observable.just(TRIGGER).compose(ensure(permissions));
+    @SuppressWarnings("unused")
+    public static void setTracing(boolean tracing) {
+        PermissionsTrace.setTracer(tracing ? ANDROIDX_TRACER : null);
     }
 
     /**
-     * Request permissions immediately, <b>must be invoked during initialization phase
-     * of your application</b>.
+     * Sets how widely pending permission requests are shared, {@link #SCOPE_ACTIVITY} by default.
+     * <p>
+     * A permission already pending within the scope is not requested again, the subscribers
+     * receive the result of the pending request. Must be invoked before the first request,
+     * typically in {@code Application.onCreate}.
      */
-    @SuppressWarnings({"WeakerAccess", "unused"})
-    public Observable<Permission> requestEach(final String... permissions) {
-        return Observable.just(TRIGGER).compose(ensureEach(permissions));
+    @SuppressWarnings("unused")
+    public static void setRequestScope(int scope) {
+        PendingRequestRegistry.setScope(scope);
     }
 
     /**
-     * Request permissions immediately, <b>must be invoked during initialization phase
-     * of your application</b>.
+     * Persists the outcome of each permission request in the store, to be read on the next
+     * starts of the application. Outcomes are not persisted by default.
+     *
+     * @param store the store to write the outcomes to, or null to stop persisting them
      */
-    public Observable<Permission> requestEachCombined(final String... permissions) {
-        return Observable.just(TRIGGER).compose(ensureEachCombined(permissions));
+    @SuppressWarnings("unused")
+    public static void setOutcomeStore(@Nullable PermissionOutcomeStore store) {
+        PendingRequestRegistry.setOutcomeStore(store);
     }
 
-    private Observable<Permission> request(final Observable<?> trigger, final String... permissions) {
-        if (permissions == null || permissions.length == 0) {
-            throw new IllegalArgumentException("RxPermissions.request/requestEach requires at least one input permission");
-        }
-        return trigger.flatMap( o -> requestImplementation(permissions));
+    /**
+     * Requests the permission after its prerequisites when they are requested together, and only
+     * if one of them is granted, otherwise it's emitted as denied without asking.
+     * <p>
+     * {@code ACCESS_BACKGROUND_LOCATION} already depends on the foreground location from Android
+     * 10, and {@code BODY_SENSORS_BACKGROUND} on {@code BODY_SENSORS} from Android 13, as the
+     * system denies them when they are requested along. An added dependency applies on every API
+     * level. Replaces the previous prerequisites of the permission.
+     *
+     * @throws IllegalArgumentException if a prerequisite depends on the permission
+     */
+    @SuppressWarnings("unused")
+    public static void addPermissionDependency(@NonNull String permission, @NonNull String... prerequisites) {
+        RequestPlanner.addDependency(permission, prerequisites);
     }
 
-    @TargetApi(Build.VERSION_CODES.M)
-    private Observable<Permission> requestImplementation(final String... permissions) {
-        List<Observable<Permission>> list = new ArrayList<>(permissions.length);
-        List<String> unrequestedPermissions = new ArrayList<>();
-
-        // In case of multiple permissions, we create an Observable for each of them.
-        // At the end, the observables are combined to have a unique response.
-        for (String permission : permissions) {
-            mRxPermissionsFragment.get().log("Requesting permission " + permission);
-            if (isGranted(permission)) {
-                // Already granted, or not Android M
-                // Return a granted Permission object.
-                list.add(Observable.just(new Permission(permission, true, false)));
-                continue;
-            }
+    /**
+     * Keeps the results of the permission requests in memory for the given duration.
+     * <p>
+     * A permission requested again while its result is retained, for instance by a subscriber
+     * attaching after the result or re-subscribing after a configuration change, receives the
+     * retained result instead of triggering a new system request. Results are not retained by
+     * default.
+     *
+     * @param duration how long the results are retained, 0 to stop retaining them
+     */
+    @SuppressWarnings("unused")
+    public void setResultRetention(long duration, @NonNull TimeUnit unit) {
+        mBackend.get().getRegistry().setRetention(unit.toMillis(duration));
+    }
 
-            if (isRevoked(permission)) {
-                // Revoked by a policy, return a denied Permission object.
-                list.add(Observable.just(new Permission(permission, false, false)));
-                continue;
-            }
+    /**
+     * Reads the grant states of all the permissions declared by the application at once, from its
+     * {@code PackageInfo}, instead of one call to the package manager per permission. A permission
+     * missing from the manifest is then denied immediately, without showing the dialog.
+     * <p>
+     * The states are read again after each request and when the host resumes. The setting
+     * applies to all the instances of the host. Disabled by default.
+     */
+    @SuppressWarnings("unused")
+    public void setBulkPermissionIndex(boolean enabled) {
+        mBackend.get().getRegistry().setIndexEnabled(enabled);
+    }
 
-            PublishSubject<Permission> subject = mRxPermissionsFragment.get().getSubjectByPermission(permission);
-            // Create a new subject if not exists
-            if (subject == null) {
-                unrequestedPermissions.add(permission);
-                subject = PublishSubject.create();
-                mRxPermissionsFragment.get().setSubjectForPermission(permission, subject);
-            }
+    /**
+     * Merges the permission requests made within the window into a single system request,
+     * so several components requesting permissions at the same time share one dialog.
+     * <p>
+     * Use {@link #COALESCE_NEXT_FRAME} to merge the requests made during the current frame,
+     * or {@link #NO_COALESCING} (the default) to request permissions immediately.
+     *
+     * @param windowMillis the duration of the window in milliseconds
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setRequestCoalescingWindow(long windowMillis) {
+        mBackend.get().setCoalescingWindow(windowMillis);
+    }
 
-            list.add(subject);
+    /**
+     * Sets the priority of the requests made by this instance from now on. A request keeps the
+     * priority it was made with, even if it's subscribed to later.
+     * <p>
+     * The system shows one dialog at a time: the dialogs requested while another one is showing
+     * wait in a queue shared by the host, and the next one is shown once the result of the
+     * current one is received. Waiting dialogs are shown by priority, then in request order,
+     * and the ones with the same priority are merged into a single dialog.
+     *
+     * @param priority {@link #PRIORITY_USER_INITIATED} (the default) or {@link #PRIORITY_BACKGROUND}
+     */
+    @SuppressWarnings("unused")
+    public void setRequestPriority(int priority) {
+        if (priority != PRIORITY_BACKGROUND && priority != PRIORITY_USER_INITIATED) {
+            throw new IllegalArgumentException("Unknown request priority " + priority);
         }
+        mRequestPriority = priority;
+    }
 
-        if (!unrequestedPermissions.isEmpty()) {
-            String[] unrequestedPermissionsArray = unrequestedPermissions.toArray(new String[unrequestedPermissions.size()]);
-            requestPermissionsFromFragment(unrequestedPermissionsArray);
+    /**
+     * Emits the current grant state of each permission, then each time it changes, for instance
+     * when the user grants it from the settings or the system revokes it.
+     * <p>
+     * The states are checked once for all the observers of the host each time it resumes, and
+     * only the changes are emitted. Their {@code shouldShowRequestPermissionRationale} is always
+     * false. For SDK &lt; 23, emits the permissions as granted.
+     */
+    @SuppressWarnings("unused")
+    public Observable<Permission> observe(final String... permissions) {
+        if (permissions == null || permissions.length == 0) {
+            throw new IllegalArgumentException("RxPermissions.observe requires at least one input permission");
         }
-        return Observable.concat(Observable.fromIterable(list));
+        return observe(PermissionSet.of(permissions));
+    }
+
+    /**
+     * Same as {@link #observe(String...)}, with the permissions ordered by id.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public Observable<Permission> observe(@NonNull final PermissionSet permissions) {
+        return Observable.defer(new Supplier<ObservableSource<Permission>>() {
+            @Override
+            public ObservableSource<Permission> get() {
+                final String[] names = permissions.toArray();
+                if (!isMarshmallow()) {
+                    List<Permission> states = new ArrayList<>(names.length);
+                    for (String name : names) {
+                        states.add(Permission.of(name, true, false));
+                    }
+                    // Never changes
+                    return Observable.fromIterable(states).concatWith(Observable.<Permission>never());
+                }
+                final GrantStateMonitor monitor = mBackend.get().getRegistry().getStateMonitor();
+                List<Permission> states = monitor.track(names, new GrantStateMonitor.Checker() {
+                    @Override
+                    public boolean isGranted(String permission) {
+                        return RxPermissions.this.isGranted(permission);
+                    }
+                });
+                return monitor.getChanges()
+                        .filter(new Predicate<Permission>() {
+                            @Override
+                            public boolean test(Permission permission) {
+                                return permissions.contains(permission.name);
+                            }
+                        })
+                        .startWithIterable(states)
+                        .doFinally(new Action() {
+                            @Override
+                            public void run() {
+                                monitor.untrack(names);
+                            }
+                        });
+            }
+        });
     }
 
     /**
@@ -271,10 +532,16 @@ public class RxPermissions {
         return true;
     }
 
+    @Override
     @TargetApi(Build.VERSION_CODES.M)
-    void requestPermissionsFromFragment(String[] permissions) {
-        mRxPermissionsFragment.get().log("requestPermissionsFromFragment " + TextUtils.join(", ", permissions));
-        mRxPermissionsFragment.get().requestPermissions(permissions);
+    void requestPermissionsFromFragment(String[] permissions, int priority) {
+        PermissionsTrace.Tracer tracer = PermissionsTrace.begin(PermissionsTrace.SECTION_REQUEST_PERMISSIONS);
+        try {
+            mBackend.get().getLogger().log(PermissionsLogger.EVENT_REQUEST_PERMISSIONS, permissions);
+            mBackend.get().enqueueRequest(permissions, priority);
+        } finally {
+            PermissionsTrace.end(tracer);
+        }
     }
 
     /**
@@ -282,9 +549,25 @@ public class RxPermissions {
      * <p>
      * Always true if SDK &lt; 23.
      */
+    @Override
     @SuppressWarnings("WeakerAccess")
     public boolean isGranted(String permission) {
-        return !isMarshmallow() || mRxPermissionsFragment.get().isGranted(permission);
+        if (!isMarshmallow()) {
+            return true;
+        }
+        PermissionsTrace.Tracer tracer = PermissionsTrace.begin(PermissionsTrace.SECTION_IS_GRANTED);
+        try {
+            PermissionsMetrics metrics = mMetrics;
+            if (metrics == PermissionsMetrics.NONE) {
+                return mBackend.get().isGranted(permission);
+            }
+            metrics.onCheckStarted(permission, PermissionsMetrics.CHECK_GRANTED, System.nanoTime());
+            boolean granted = mBackend.get().isGranted(permission);
+            metrics.onCheckFinished(permission, PermissionsMetrics.CHECK_GRANTED, granted, System.nanoTime());
+            return granted;
+        } finally {
+            PermissionsTrace.end(tracer);
+        }
     }
 
     /**
@@ -292,9 +575,96 @@ public class RxPermissions {
      * <p>
      * Always false if SDK &lt; 23.
      */
+    @Override
     @SuppressWarnings("WeakerAccess")
     public boolean isRevoked(String permission) {
-        return isMarshmallow() && mRxPermissionsFragment.get().isRevoked(permission);
+        if (!isMarshmallow()) {
+            return false;
+        }
+        PermissionsTrace.Tracer tracer = PermissionsTrace.begin(PermissionsTrace.SECTION_IS_REVOKED);
+        try {
+            PermissionsMetrics metrics = mMetrics;
+            if (metrics == PermissionsMetrics.NONE) {
+                return mBackend.get().isRevoked(permission);
+            }
+            metrics.onCheckStarted(permission, PermissionsMetrics.CHECK_REVOKED, System.nanoTime());
+            boolean revoked = mBackend.get().isRevoked(permission);
+            metrics.onCheckFinished(permission, PermissionsMetrics.CHECK_REVOKED, revoked, System.nanoTime());
+            return revoked;
+        } finally {
+            PermissionsTrace.end(tracer);
+        }
+    }
+
+    @Override
+    PendingRequests getPendingRequests() {
+        return mBackend.get().getRegistry();
+    }
+
+    @Override
+    PermissionsLogger getLogger() {
+        return mBackend.get().getLogger();
+    }
+
+    @Override
+    Scheduler getRequestScheduler() {
+        return MAIN_THREAD;
+    }
+
+    @Override
+    boolean isOnRequestThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    @Override
+    int getSdkInt() {
+        return Build.VERSION.SDK_INT;
+    }
+
+    /**
+     * Forgets the permission states cached since the last resume of the host, the next checks
+     * will query the system again.
+     * <p>
+     * The cache is already invalidated when the host resumes and when a permission request
+     * returns, call this if a permission may have changed in between.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void invalidate() {
+        mBackend.get().getRegistry().invalidateStates();
+    }
+
+    /**
+     * Returns the number of permission checks served from the cache.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public long getStateCacheHitCount() {
+        return mBackend.get().getRegistry().getStateCache().getHitCount();
+    }
+
+    /**
+     * Returns the number of permission checks which had to query the system.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public long getStateCacheMissCount() {
+        return mBackend.get().getRegistry().getStateCache().getMissCount();
+    }
+
+    /**
+     * Returns the number of dialogs waiting for the one currently showing, see
+     * {@link #setRequestPriority(int)}.
+     */
+    @SuppressWarnings("unused")
+    public int getQueuedDialogCount() {
+        return mBackend.get().getRegistry().getDialogQueue().getDepth();
+    }
+
+    /**
+     * Returns for how long, in milliseconds, the oldest waiting dialog has been waiting, 0 if
+     * none is waiting.
+     */
+    @SuppressWarnings("unused")
+    public long getLongestDialogWaitMillis() {
+        return mBackend.get().getRegistry().getDialogQueue().getLongestWaitMillis();
     }
 
     boolean isMarshmallow() {
@@ -302,7 +672,7 @@ public class RxPermissions {
     }
 
     void onRequestPermissionsResult(String[] permissions, int[] grantResults) {
-        mRxPermissionsFragment.get().onRequestPermissionsResult(permissions, grantResults, new boolean[permissions.length]);
+        mBackend.get().onRequestPermissionsResult(new PermissionResultBatch(permissions, grantResults));
     }
 
     @FunctionalInterface
@@ -310,4 +680,8 @@ public class RxPermissions {
         V get();
     }
 
+    // Resolves the backend once, then hands it out without locking.
+    private abstract static class LazyBackend extends PublishOnceLazy<PermissionBackend> implements Lazy<PermissionBackend> {
+    }
+
 }
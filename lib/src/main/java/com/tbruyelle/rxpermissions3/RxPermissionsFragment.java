@@ -1,7 +1,6 @@
 package com.tbruyelle.rxpermissions3;
 
 import android.annotation.TargetApi;
-import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
@@ -10,101 +9,140 @@ import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentActivity;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import io.reactivex.rxjava3.subjects.PublishSubject;
 
 
-public class RxPermissionsFragment extends Fragment {
+public class RxPermissionsFragment extends Fragment implements PermissionBackend {
 
     private static final int PERMISSIONS_REQUEST_CODE = 42;
 
-    // Contains all the current permission requests.
-    // Once granted or denied, they are removed from it.
-    private Map<String, PublishSubject<Permission>> mSubjects = new HashMap<>();
-    private boolean mLogging;
+    // Permission requests in flight and permission states, shared with the other backends of the host.
+    private PendingRequestRegistry mRegistry;
+    private final RequestCoalescer mCoalescer = new RequestCoalescer(new MainThreadTimer());
+    private final PermissionsLogger mLogger = new PermissionsLogger(new PermissionsLogger.Printer() {
+        @Override
+        public void println(String message) {
+            Log.d(RxPermissions.TAG, message);
+        }
+    });
+    private PermissionsMetrics mMetrics = PermissionsMetrics.NONE;
 
     public RxPermissionsFragment() {
     }
 
+    // The fragment backend relies on the framework permission callbacks, deprecated since
+    // fragment 1.3.0: BACKEND_ACTIVITY_RESULT uses the ActivityResult API instead.
     @Override
+    @SuppressWarnings("deprecation")
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setRetainInstance(true);
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        // The user may have changed the permissions from the settings while we were paused.
+        PendingRequestRegistry registry = getRegistry();
+        registry.onHostResumed(requireActivity());
+        registry.getStateMonitor().refresh(this::isGranted);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Retained across configuration changes, destroyed when the host finishes or, for a
+        // nested fragment, when its parent is removed while the activity and its registry live
+        // on: the result of a dialog still showing won't be delivered to anyone.
+        if (mRegistry != null) {
+            mRegistry.onBackendFinished(this);
+        }
+    }
+
+    @Override
+    public void enqueueRequest(@NonNull String[] permissions, int priority) {
+        mCoalescer.request(permissions, priority, this);
+    }
+
+    @Override
     @TargetApi(Build.VERSION_CODES.M)
-    void requestPermissions(@NonNull String[] permissions) {
+    @SuppressWarnings("deprecation")
+    public void dispatchRequestPermissions(@NonNull String[] permissions) {
+        if (mMetrics != PermissionsMetrics.NONE) {
+            mMetrics.onDialogDispatched(permissions, System.nanoTime());
+        }
         requestPermissions(permissions, PERMISSIONS_REQUEST_CODE);
     }
 
+    @Override
+    public void setCoalescingWindow(long windowMillis) {
+        mCoalescer.setWindow(windowMillis, this);
+    }
+
+    @Override
     @TargetApi(Build.VERSION_CODES.M)
+    @SuppressWarnings("deprecation")
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
 
         if (requestCode != PERMISSIONS_REQUEST_CODE) return;
 
-        boolean[] shouldShowRequestPermissionRationale = new boolean[permissions.length];
-
-        for (int i = 0; i < permissions.length; i++) {
-            shouldShowRequestPermissionRationale[i] = shouldShowRequestPermissionRationale(permissions[i]);
-        }
+        // The rationales are only read for the denied permissions delivered to subscribers.
+        onRequestPermissionsResult(new PermissionResultBatch(permissions, grantResults, this::shouldShowRequestPermissionRationale));
+    }
 
-        onRequestPermissionsResult(permissions, grantResults, shouldShowRequestPermissionRationale);
-    }
-
-    void onRequestPermissionsResult(String[] permissions, int[] grantResults, boolean[] shouldShowRequestPermissionRationale) {
-        for (int i = 0, size = permissions.length; i < size; i++) {
-            log("onRequestPermissionsResult  " + permissions[i]);
-            // Find the corresponding subject
-            PublishSubject<Permission> subject = mSubjects.get(permissions[i]);
-            if (subject == null) {
-                // No subject found
-                Log.e(RxPermissions.TAG, "RxPermissions.onRequestPermissionsResult invoked but didn't find the corresponding permission request.");
-                return;
-            }
-            mSubjects.remove(permissions[i]);
-            boolean granted = grantResults[i] == PackageManager.PERMISSION_GRANTED;
-            subject.onNext(new Permission(permissions[i], granted, shouldShowRequestPermissionRationale[i]));
-            subject.onComplete();
-        }
+    @Override
+    public void onRequestPermissionsResult(PermissionResultBatch results) {
+        getRegistry().onRequestPermissionsResult(this, results, mMetrics);
     }
 
+    @Override
     @TargetApi(Build.VERSION_CODES.M)
-    boolean isGranted(String permission) {
-        final FragmentActivity fragmentActivity = getActivity();
-        if (fragmentActivity == null) {
-            throw new IllegalStateException("This fragment must be attached to an activity.");
-        }
-        return fragmentActivity.checkSelfPermission(permission) == PackageManager.PERMISSION_GRANTED;
+    public boolean isGranted(String permission) {
+        return getRegistry().isGranted(requireAttachedActivity(), permission, mMetrics);
     }
 
+    @Override
     @TargetApi(Build.VERSION_CODES.M)
-    boolean isRevoked(String permission) {
+    public boolean isRevoked(String permission) {
+        return getRegistry().isRevoked(requireAttachedActivity(), permission, mMetrics);
+    }
+
+    @NonNull
+    private FragmentActivity requireAttachedActivity() {
         final FragmentActivity fragmentActivity = getActivity();
         if (fragmentActivity == null) {
             throw new IllegalStateException("This fragment must be attached to an activity.");
         }
-        return fragmentActivity.getPackageManager().isPermissionRevokedByPolicy(permission, getActivity().getPackageName());
+        return fragmentActivity;
     }
 
-    public void setLogging(boolean logging) {
-        mLogging = logging;
+    @Override
+    public void setMetrics(@NonNull PermissionsMetrics metrics) {
+        mMetrics = metrics;
     }
 
     public PublishSubject<Permission> getSubjectByPermission(@NonNull String permission) {
-        return mSubjects.get(permission);
+        return getRegistry().getSubject(permission);
     }
 
     public void setSubjectForPermission(@NonNull String permission, @NonNull PublishSubject<Permission> subject) {
-        mSubjects.put(permission, subject);
+        getRegistry().putSubject(permission, subject);
     }
 
-    void log(String message) {
-        if (mLogging) {
-            Log.d(RxPermissions.TAG, message);
+    @Override
+    @NonNull
+    public PendingRequestRegistry getRegistry() {
+        if (mRegistry == null) {
+            mRegistry = PendingRequestRegistry.get(requireAttachedActivity());
         }
+        return mRegistry;
+    }
+
+    @Override
+    @NonNull
+    public PermissionsLogger getLogger() {
+        return mLogger;
     }
 
 }
@@ -0,0 +1,36 @@
+package com.tbruyelle.rxpermissions3;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AggregatingPermissionsMetricsTest {
+
+    @Test
+    public void histogram_percentiles() {
+        AggregatingPermissionsMetrics.Histogram histogram = new AggregatingPermissionsMetrics.Histogram();
+        for (int i = 0; i < 9; i++) {
+            histogram.record(100);
+        }
+        histogram.record(10000);
+
+        assertEquals(10, histogram.getCount());
+        assertEquals(1090, histogram.getMeanNanos());
+        assertEquals(10000, histogram.getMaxNanos());
+        // 100 is in the bucket [64, 128)
+        assertEquals(127, histogram.getPercentileNanos(50));
+        assertEquals(10000, histogram.getPercentileNanos(100));
+    }
+
+    @Test
+    public void decisionLatency_fromDispatchToResult() {
+        AggregatingPermissionsMetrics metrics = new AggregatingPermissionsMetrics();
+
+        metrics.onDialogDispatched(new String[]{"p1", "p2"}, 1000);
+        metrics.onResultDelivered("p1", true, 1500);
+        metrics.onResultDelivered("p2", false, 2000);
+
+        assertEquals(2, metrics.getDecisionLatency().getCount());
+        assertEquals(1000, metrics.getDecisionLatency().getMaxNanos());
+    }
+}
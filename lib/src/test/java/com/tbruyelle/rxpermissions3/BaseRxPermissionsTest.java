@@ -0,0 +1,216 @@
+package com.tbruyelle.rxpermissions3;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.rxjava3.observers.TestObserver;
+import io.reactivex.rxjava3.schedulers.TestScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the request engine on a plain JVM, against the {@link PermissionSimulator}.
+ */
+public class BaseRxPermissionsTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String FINE_LOCATION = "android.permission.ACCESS_FINE_LOCATION";
+    private static final String COARSE_LOCATION = "android.permission.ACCESS_COARSE_LOCATION";
+    private static final String BACKGROUND_LOCATION = "android.permission.ACCESS_BACKGROUND_LOCATION";
+
+    private PermissionSimulator mSimulator;
+
+    @Before
+    public void setup() {
+        mSimulator = new PermissionSimulator(PermissionSimulator.GRANT);
+    }
+
+    @Test
+    public void request_granted_noDialog() {
+        mSimulator.setBehavior(CAMERA, PermissionSimulator.GRANTED);
+
+        TestObserver<Boolean> sub = mSimulator.request(CAMERA).test();
+
+        sub.assertValue(true);
+        assertEquals(0, mSimulator.getRequestCount());
+    }
+
+    @Test
+    public void request_revoked_noDialog() {
+        mSimulator.setBehavior(CAMERA, PermissionSimulator.REVOKED);
+
+        TestObserver<Boolean> sub = mSimulator.request(CAMERA).test();
+
+        sub.assertValue(false);
+        assertEquals(0, mSimulator.getRequestCount());
+    }
+
+    @Test
+    public void request_grant_grantedAfterwards() {
+        TestObserver<Boolean> sub = mSimulator.request(CAMERA).test();
+        sub.assertNoValues();
+        mSimulator.answerPendingRequests();
+
+        sub.assertValue(true);
+        assertTrue(mSimulator.isGranted(CAMERA));
+        mSimulator.request(CAMERA).test().assertValue(true);
+        assertEquals(1, mSimulator.getRequestCount());
+    }
+
+    @Test
+    public void requestEach_deny_rationale() {
+        mSimulator.setBehavior(CAMERA, PermissionSimulator.DENY);
+
+        TestObserver<Permission> sub = mSimulator.requestEach(CAMERA).test();
+        mSimulator.answerPendingRequests();
+
+        sub.assertValue(Permission.of(CAMERA, false, true));
+        assertTrue(mSimulator.shouldShowRequestPermissionRationale(CAMERA));
+    }
+
+    @Test
+    public void requestEach_denyNeverAskAgain_noRationale() {
+        mSimulator.setBehavior(CAMERA, PermissionSimulator.DENY_NEVER_ASK_AGAIN);
+
+        TestObserver<Permission> sub = mSimulator.requestEach(CAMERA).test();
+        mSimulator.answerPendingRequests();
+
+        sub.assertValue(Permission.of(CAMERA, false, false));
+        assertFalse(mSimulator.shouldShowRequestPermissionRationale(CAMERA));
+    }
+
+    @Test
+    public void request_mixed_singleDialogForRequestable() {
+        mSimulator.setBehavior(CAMERA, PermissionSimulator.GRANTED);
+        mSimulator.setBehavior(CONTACTS, PermissionSimulator.DENY);
+
+        TestObserver<Permission> sub = mSimulator.requestEach(CAMERA, CONTACTS).test();
+        mSimulator.answerPendingRequests();
+
+        sub.assertValues(Permission.of(CAMERA, true, false), Permission.of(CONTACTS, false, true));
+        assertEquals(1, mSimulator.getRequestCount());
+    }
+
+    @Test
+    public void requestEach_backgroundLocation_afterForeground() {
+        TestObserver<Permission> sub = mSimulator.requestEach(BACKGROUND_LOCATION, FINE_LOCATION).test();
+        mSimulator.answerPendingRequests();
+
+        sub.assertValue(Permission.of(FINE_LOCATION, true, false));
+        mSimulator.answerPendingRequests();
+
+        sub.assertValues(Permission.of(FINE_LOCATION, true, false), Permission.of(BACKGROUND_LOCATION, true, false));
+        sub.assertComplete();
+        assertEquals(2, mSimulator.getRequestCount());
+    }
+
+    @Test
+    public void requestEach_backgroundLocationBeforeQ_notStaged() {
+        mSimulator.setSdkInt(28);
+
+        TestObserver<Permission> sub = mSimulator.requestEach(BACKGROUND_LOCATION, FINE_LOCATION).test();
+        mSimulator.answerPendingRequests();
+
+        sub.assertValues(Permission.of(BACKGROUND_LOCATION, true, false), Permission.of(FINE_LOCATION, true, false));
+        assertEquals(1, mSimulator.getRequestCount());
+    }
+
+    @Test
+    public void requestEach_foregroundLocationDenied_backgroundSkipped() {
+        mSimulator.setBehavior(FINE_LOCATION, PermissionSimulator.DENY);
+        mSimulator.setBehavior(COARSE_LOCATION, PermissionSimulator.DENY_NEVER_ASK_AGAIN);
+
+        TestObserver<Permission> sub = mSimulator.requestEach(FINE_LOCATION, COARSE_LOCATION, BACKGROUND_LOCATION).test();
+        mSimulator.answerPendingRequests();
+
+        sub.assertValues(Permission.of(FINE_LOCATION, false, true), Permission.of(COARSE_LOCATION, false, false),
+                Permission.of(BACKGROUND_LOCATION, false, true));
+        sub.assertComplete();
+        assertEquals(1, mSimulator.getRequestCount());
+    }
+
+    @Test
+    public void requestEach_backgroundLocationAlone_notStaged() {
+        mSimulator.setBehavior(FINE_LOCATION, PermissionSimulator.GRANTED);
+
+        TestObserver<Permission> sub = mSimulator.requestEach(BACKGROUND_LOCATION).test();
+        mSimulator.answerPendingRequests();
+
+        sub.assertValue(Permission.of(BACKGROUND_LOCATION, true, false));
+        assertEquals(1, mSimulator.getRequestCount());
+    }
+
+    @Test
+    public void request_disposed_evicted() {
+        TestObserver<Boolean> sub = mSimulator.request(CAMERA).test();
+        sub.dispose();
+        TestObserver<Boolean> sub2 = mSimulator.request(CAMERA).test();
+        mSimulator.answerPendingRequests();
+
+        // The dialog of the disposed request doesn't answer the new one, it waits for its own
+        assertEquals(2, mSimulator.getRequestCount());
+        sub2.assertNoValues();
+        mSimulator.answerPendingRequests();
+        sub2.assertValue(true);
+    }
+
+    @Test
+    public void request_latency_answersAfterDelay() {
+        TestScheduler scheduler = new TestScheduler();
+        mSimulator.setLatency(300, TimeUnit.MILLISECONDS, scheduler);
+
+        TestObserver<Boolean> sub = mSimulator.request(CAMERA).test();
+        scheduler.advanceTimeBy(299, TimeUnit.MILLISECONDS);
+        sub.assertNoValues();
+        scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+
+        sub.assertValue(true);
+    }
+
+    @Test
+    public void request_concurrent_sharesDialog() throws InterruptedException {
+        final int threads = 8;
+        final int requests = 1000;
+        final List<TestObserver<Boolean>> subs = new ArrayList<>();
+        for (int i = 0; i < threads * requests; i++) {
+            subs.add(new TestObserver<Boolean>());
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < requests; j++) {
+                        mSimulator.request(CAMERA).subscribe(subs.get(thread * requests + j));
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        mSimulator.answerPendingRequests();
+
+        assertEquals(1, mSimulator.getRequestCount());
+        for (TestObserver<Boolean> sub : subs) {
+            sub.assertValue(true);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.tbruyelle.rxpermissions3;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import androidx.fragment.app.Fragment;
+import androidx.fragment.app.FragmentActivity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.rxjava3.observers.TestObserver;
+import io.reactivex.rxjava3.subjects.PublishSubject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.M)
+public class PendingRequestRegistryTest {
+
+    private static final String PERMISSION = Manifest.permission.CAMERA;
+
+    private FragmentActivity mActivity;
+
+    @Before
+    public void setup() {
+        mActivity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+    }
+
+    @After
+    public void tearDown() {
+        RxPermissions.setRequestScope(RxPermissions.SCOPE_ACTIVITY);
+    }
+
+    private Fragment addFragment(androidx.fragment.app.FragmentManager fragmentManager, String tag) {
+        Fragment fragment = new Fragment();
+        fragmentManager.beginTransaction().add(fragment, tag).commitNow();
+        return fragment;
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void nestedFragments_shareRequest() {
+        Fragment parent = addFragment(mActivity.getSupportFragmentManager(), "parent");
+        Fragment child = addFragment(parent.getChildFragmentManager(), "child");
+        RxPermissions activityPermissions = spy(new RxPermissions(mActivity));
+        RxPermissions childPermissions = spy(new RxPermissions(child));
+        doReturn(false).when(activityPermissions).isRevoked(anyString());
+        doReturn(false).when(childPermissions).isRevoked(anyString());
+        TestObserver<Boolean> activitySub = new TestObserver<>();
+        TestObserver<Boolean> childSub = new TestObserver<>();
+
+        activityPermissions.request(PERMISSION).subscribe(activitySub);
+        childPermissions.request(PERMISSION).subscribe(childSub);
+        childPermissions.mBackend.get().onRequestPermissionsResult(new PermissionResultBatch(
+                new String[]{PERMISSION}, new int[]{PackageManager.PERMISSION_GRANTED}));
+
+        verify(activityPermissions).requestPermissionsFromFragment(any(String[].class), anyInt());
+        verify(childPermissions, never()).requestPermissionsFromFragment(any(String[].class), anyInt());
+        activitySub.assertValue(true);
+        childSub.assertValue(true);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void nestedFragment_parentRemoved_deniesShowingRequest() {
+        Fragment parent = addFragment(mActivity.getSupportFragmentManager(), "parent");
+        Fragment child = addFragment(parent.getChildFragmentManager(), "child");
+        RxPermissions activityPermissions = spy(new RxPermissions(mActivity));
+        RxPermissions childPermissions = spy(new RxPermissions(child));
+        doReturn(false).when(activityPermissions).isRevoked(anyString());
+        doReturn(false).when(childPermissions).isRevoked(anyString());
+        TestObserver<Boolean> childSub = new TestObserver<>();
+        TestObserver<Boolean> activitySub = new TestObserver<>();
+
+        childPermissions.request(PERMISSION).subscribe(childSub);
+        activityPermissions.request(PERMISSION).subscribe(activitySub);
+        // The dialog was shown by the child, whose fragment is destroyed with its parent
+        mActivity.getSupportFragmentManager().beginTransaction().remove(parent).commitNow();
+
+        childSub.assertValue(false);
+        activitySub.assertValue(false);
+        activityPermissions.request(PERMISSION).subscribe(new TestObserver<Boolean>());
+        verify(activityPermissions).requestPermissionsFromFragment(any(String[].class), anyInt());
+    }
+
+    @Test
+    public void nestedFragments_sameRegistry() {
+        Fragment parent = addFragment(mActivity.getSupportFragmentManager(), "parent");
+        Fragment child = addFragment(parent.getChildFragmentManager(), "child");
+
+        PermissionBackend activityFragment = new RxPermissions(mActivity).mBackend.get();
+        PermissionBackend parentFragment = new RxPermissions(parent).mBackend.get();
+        PermissionBackend childFragment = new RxPermissions(child).mBackend.get();
+
+        assertNotSame(activityFragment, childFragment);
+        assertSame(activityFragment.getRegistry(), parentFragment.getRegistry());
+        assertSame(activityFragment.getRegistry(), childFragment.getRegistry());
+    }
+
+    @Test
+    public void activityScope_separateRegistries() {
+        FragmentActivity otherActivity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+
+        PermissionBackend fragment = new RxPermissions(mActivity).mBackend.get();
+        PermissionBackend otherFragment = new RxPermissions(otherActivity).mBackend.get();
+
+        assertNotSame(fragment.getRegistry(), otherFragment.getRegistry());
+    }
+
+    @Test
+    public void applicationScope_sharedRegistry() {
+        RxPermissions.setRequestScope(RxPermissions.SCOPE_APPLICATION);
+        FragmentActivity otherActivity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+
+        PermissionBackend fragment = new RxPermissions(mActivity).mBackend.get();
+        PermissionBackend otherFragment = new RxPermissions(otherActivity).mBackend.get();
+
+        assertSame(fragment.getRegistry(), otherFragment.getRegistry());
+    }
+
+    @Test
+    public void backends_sameRegistry() {
+        PermissionBackend fragmentBackend = new RxPermissions(mActivity).mBackend.get();
+        PermissionBackend activityResultBackend = new RxPermissions(mActivity, RxPermissions.BACKEND_ACTIVITY_RESULT).mBackend.get();
+
+        assertSame(fragmentBackend.getRegistry(), activityResultBackend.getRegistry());
+    }
+
+    @Test
+    public void activityResultBackend_onePerActivity() {
+        PermissionBackend backend = new RxPermissions(mActivity, RxPermissions.BACKEND_ACTIVITY_RESULT).mBackend.get();
+        PermissionBackend otherBackend = new RxPermissions(mActivity, RxPermissions.BACKEND_ACTIVITY_RESULT).mBackend.get();
+        FragmentActivity otherActivity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+
+        assertSame(backend, otherBackend);
+        assertNotSame(backend, new RxPermissions(otherActivity, RxPermissions.BACKEND_ACTIVITY_RESULT).mBackend.get());
+    }
+
+    @Test
+    public void putRequestIfAbsent_concurrent_createsOnce() throws InterruptedException {
+        final PendingRequestRegistry registry = new PendingRequestRegistry();
+        final int rounds = 1000;
+        final AtomicInteger created = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    for (int round = 0; round < rounds; round++) {
+                        PendingRequest request = new PendingRequest(PERMISSION + round, PublishSubject.<Permission>create());
+                        if (registry.putRequestIfAbsent(PERMISSION + round, request) == null) {
+                            created.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(rounds, created.get());
+    }
+
+    @Test
+    public void deliverResult_concurrentRequests_noResultLost() throws InterruptedException {
+        final PendingRequestRegistry registry = new PendingRequestRegistry();
+        final List<TestObserver<Permission>> subs = new ArrayList<>();
+        final AtomicBoolean requesting = new AtomicBoolean(true);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService requesters = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            requesters.execute(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    for (int round = 0; round < 1000; round++) {
+                        PublishSubject<Permission> subject = PublishSubject.create();
+                        TestObserver<Permission> sub = subject.test();
+                        if (registry.putRequestIfAbsent(PERMISSION, new PendingRequest(PERMISSION, subject)) == null) {
+                            synchronized (subs) {
+                                subs.add(sub);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        Thread deliverer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                awaitQuietly(start);
+                while (requesting.get()) {
+                    registry.deliverResult(PERMISSION, true, false);
+                }
+            }
+        });
+        deliverer.start();
+        start.countDown();
+        requesters.shutdown();
+
+        assertTrue(requesters.awaitTermination(10, TimeUnit.SECONDS));
+        requesting.set(false);
+        deliverer.join();
+        registry.deliverResult(PERMISSION, true, false);
+        for (TestObserver<Permission> sub : subs) {
+            sub.assertValue(Permission.of(PERMISSION, true, false));
+            sub.assertComplete();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.tbruyelle.rxpermissions3;
+
+import android.Manifest;
+import android.app.Application;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.M)
+public class PermissionOutcomeStoreTest {
+
+    private static final String PERMISSION = Manifest.permission.CAMERA;
+
+    private Application mApplication;
+    private SharedPreferences mPreferences;
+
+    @Before
+    public void setup() {
+        mApplication = RuntimeEnvironment.application;
+        mPreferences = mApplication.getSharedPreferences("outcomes", Context.MODE_PRIVATE);
+    }
+
+    @Test
+    public void getOutcome_neverRequested() {
+        PermissionOutcomeStore store = new PermissionOutcomeStore(mApplication, mPreferences);
+
+        assertNull(store.getOutcome(PERMISSION));
+    }
+
+    @Test
+    public void getOutcome_readOnNextStart() {
+        shadowOf(mApplication).grantPermissions(PERMISSION);
+        long before = System.currentTimeMillis();
+        new PermissionOutcomeStore(mApplication, mPreferences).record(PERMISSION, true, false);
+
+        PermissionOutcome outcome = new PermissionOutcomeStore(mApplication, mPreferences).getOutcome(PERMISSION);
+
+        assertNotNull(outcome);
+        assertEquals(PERMISSION, outcome.name);
+        assertTrue(outcome.granted);
+        assertFalse(outcome.shouldShowRequestPermissionRationale);
+        assertFalse(outcome.neverAskAgain);
+        assertTrue(outcome.timestamp >= before);
+    }
+
+    @Test
+    public void getOutcome_deniedWithoutRationale_neverAskAgain() {
+        PermissionOutcomeStore store = new PermissionOutcomeStore(mApplication, mPreferences);
+        store.record(PERMISSION, false, false);
+
+        PermissionOutcome outcome = store.getOutcome(PERMISSION);
+
+        assertNotNull(outcome);
+        assertTrue(outcome.neverAskAgain);
+    }
+
+    @Test
+    public void getOutcome_deniedWithRationale_mayAskAgain() {
+        PermissionOutcomeStore store = new PermissionOutcomeStore(mApplication, mPreferences);
+        store.record(PERMISSION, false, true);
+
+        PermissionOutcome outcome = store.getOutcome(PERMISSION);
+
+        assertNotNull(outcome);
+        assertTrue(outcome.shouldShowRequestPermissionRationale);
+        assertFalse(outcome.neverAskAgain);
+    }
+
+    @Test
+    public void getOutcome_grantedSince_null() {
+        PermissionOutcomeStore store = new PermissionOutcomeStore(mApplication, mPreferences);
+        store.record(PERMISSION, false, false);
+
+        shadowOf(mApplication).grantPermissions(PERMISSION);
+
+        assertNull(store.getOutcome(PERMISSION));
+    }
+}
@@ -0,0 +1,78 @@
+package com.tbruyelle.rxpermissions3;
+
+import android.content.pm.PackageManager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PermissionResultBatchTest {
+
+    @Test
+    public void results() {
+        PermissionResultBatch results = new PermissionResultBatch(new String[]{"p1", "p2"},
+                new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_DENIED});
+        results.setShouldShowRequestPermissionRationale(1);
+
+        assertEquals(2, results.size());
+        assertEquals("p2", results.getPermission(1));
+        assertTrue(results.isGranted(0));
+        assertFalse(results.isGranted(1));
+        assertFalse(results.shouldShowRequestPermissionRationale(0));
+        assertTrue(results.shouldShowRequestPermissionRationale(1));
+    }
+
+    @Test
+    public void rationale_beyondOneWord() {
+        String[] permissions = new String[130];
+        for (int i = 0; i < permissions.length; i++) {
+            permissions[i] = "p" + i;
+        }
+        PermissionResultBatch results = new PermissionResultBatch(permissions, new int[permissions.length]);
+        results.setShouldShowRequestPermissionRationale(63);
+        results.setShouldShowRequestPermissionRationale(129);
+
+        assertTrue(results.shouldShowRequestPermissionRationale(63));
+        assertFalse(results.shouldShowRequestPermissionRationale(64));
+        assertFalse(results.shouldShowRequestPermissionRationale(127));
+        assertTrue(results.shouldShowRequestPermissionRationale(129));
+    }
+
+    @Test
+    public void rationale_askedOnceForDeniedOnly() {
+        final List<String> asked = new ArrayList<>();
+        PermissionResultBatch results = new PermissionResultBatch(new String[]{"p1", "p2", "p3"},
+                new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_DENIED, PackageManager.PERMISSION_DENIED},
+                permission -> {
+                    asked.add(permission);
+                    return true;
+                });
+
+        assertFalse(results.shouldShowRequestPermissionRationale(0));
+        assertTrue(results.shouldShowRequestPermissionRationale(1));
+        assertTrue(results.shouldShowRequestPermissionRationale(1));
+        assertEquals(Collections.singletonList("p2"), asked);
+    }
+
+    @Test
+    public void rationale_notAskedWithoutRequest() {
+        final List<String> asked = new ArrayList<>();
+        PermissionResultBatch results = new PermissionResultBatch(new String[]{"p1"},
+                new int[]{PackageManager.PERMISSION_DENIED},
+                permission -> {
+                    asked.add(permission);
+                    return true;
+                });
+        RequestRegistry registry = new RequestRegistry();
+
+        assertFalse(registry.deliverResult(results, 0));
+        assertFalse(registry.cancelRequest("p2", results));
+        assertTrue(asked.isEmpty());
+    }
+}
@@ -0,0 +1,96 @@
+package com.tbruyelle.rxpermissions3;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PermissionSetTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String CUSTOM = "com.example.permission.CUSTOM";
+
+    @Test
+    public void of_contains() {
+        PermissionSet set = PermissionSet.of(CAMERA, CUSTOM);
+
+        assertTrue(set.contains(CAMERA));
+        assertTrue(set.contains(CUSTOM));
+        assertFalse(set.contains(CONTACTS));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void setOperations() {
+        PermissionSet a = PermissionSet.of(CAMERA, CONTACTS);
+        PermissionSet b = PermissionSet.of(CONTACTS, CUSTOM);
+
+        assertEquals(PermissionSet.of(CAMERA, CONTACTS, CUSTOM), a.union(b));
+        assertEquals(PermissionSet.of(CONTACTS), a.intersect(b));
+        assertEquals(PermissionSet.of(CAMERA), a.minus(b));
+        assertTrue(a.union(b).containsAll(a));
+        assertFalse(a.containsAll(b));
+    }
+
+    @Test
+    public void unionMinus_containsAndSize() {
+        PermissionSet set = PermissionSet.of(CAMERA).union(PermissionSet.of(CUSTOM));
+
+        assertTrue(set.contains(CUSTOM));
+        assertEquals(2, set.size());
+        set = set.minus(PermissionSet.of(CAMERA));
+        assertFalse(set.contains(CAMERA));
+        assertTrue(set.contains(CUSTOM));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void equals_ignoresOrderAndDuplicates() {
+        PermissionSet set = PermissionSet.of(CAMERA, CUSTOM);
+        PermissionSet other = PermissionSet.of(CUSTOM, CAMERA, CUSTOM);
+
+        assertEquals(set, other);
+        assertEquals(set.hashCode(), other.hashCode());
+        assertFalse(set.equals(PermissionSet.of(CAMERA)));
+        assertTrue(PermissionSet.of().equals(PermissionSet.EMPTY));
+    }
+
+    @Test
+    public void minus_trimsEmptyWords() {
+        PermissionSet set = PermissionSet.of(CAMERA, CUSTOM).minus(PermissionSet.of(CUSTOM));
+
+        assertEquals(PermissionSet.of(CAMERA), set);
+        assertEquals(PermissionSet.of(CAMERA).hashCode(), set.hashCode());
+        assertTrue(PermissionSet.of(CAMERA).minus(PermissionSet.of(CAMERA)).isEmpty());
+    }
+
+    @Test
+    public void toArray_orderedById() {
+        PermissionSet set = PermissionSet.of(CUSTOM, CONTACTS, CAMERA);
+
+        assertArrayEquals(new String[]{CAMERA, CONTACTS, CUSTOM}, set.toArray());
+    }
+
+    @Test
+    public void iterator_beyondOneWord() {
+        List<String> permissions = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            permissions.add("com.example.permission.P" + i);
+        }
+        PermissionSet set = PermissionSet.of(permissions.toArray(new String[0]));
+
+        List<String> iterated = new ArrayList<>();
+        for (String permission : set) {
+            iterated.add(permission);
+        }
+        assertEquals(permissions, iterated);
+        assertEquals(Arrays.asList(set.toArray()), iterated);
+    }
+}
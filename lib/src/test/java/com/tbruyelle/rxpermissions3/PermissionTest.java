@@ -0,0 +1,60 @@
+package com.tbruyelle.rxpermissions3;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class PermissionTest {
+
+    @Test
+    public void combine_allGranted() {
+        Permission combined = Permission.combine(Arrays.asList(
+                new Permission("p1", true),
+                new Permission("p2", true)));
+
+        assertEquals(new Permission("p1, p2", true, false), combined);
+    }
+
+    @Test
+    public void combine_oneDeniedWithRationale() {
+        Permission combined = Permission.combine(Arrays.asList(
+                new Permission("p1", true),
+                new Permission("p2", false, true),
+                new Permission("p3", false, false)));
+
+        assertEquals(new Permission("p1, p2, p3", false, true), combined);
+    }
+
+    @Test
+    public void combine_single() {
+        Permission combined = Permission.combine(Collections.singletonList(new Permission("p1", false, true)));
+
+        assertEquals(new Permission("p1", false, true), combined);
+    }
+
+    @Test
+    public void constructor_sameAsCombine() {
+        Permission combined = new Permission(Arrays.asList(
+                new Permission("p1", true),
+                new Permission("p2", false)));
+
+        assertEquals(new Permission("p1, p2", false, false), combined);
+    }
+
+    @Test
+    public void of_sameInstance() {
+        assertSame(Permission.of("p1", false, true), Permission.of("p1", false, true));
+        assertEquals(new Permission("p1", false, true), Permission.of("p1", false, true));
+    }
+
+    @Test
+    public void of_distinctStates() {
+        assertNotSame(Permission.of("p1", true, false), Permission.of("p1", false, false));
+        assertNotSame(Permission.of("p1", false, false), Permission.of("p1", false, true));
+    }
+}
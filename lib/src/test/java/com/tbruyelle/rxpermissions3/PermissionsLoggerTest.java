@@ -0,0 +1,60 @@
+package com.tbruyelle.rxpermissions3;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PermissionsLoggerTest {
+
+    private final List<String> mPrinted = new ArrayList<>();
+    private final PermissionsLogger mLogger = new PermissionsLogger(new PermissionsLogger.Printer() {
+        @Override
+        public void println(String message) {
+            mPrinted.add(message);
+        }
+    });
+
+    @Test
+    public void disabledByDefault() {
+        mLogger.log(PermissionsLogger.EVENT_REQUESTING, "p1");
+
+        assertTrue(mPrinted.isEmpty());
+        assertEquals("", mLogger.dump());
+    }
+
+    @Test
+    public void printing() {
+        mLogger.setPrinting(true);
+
+        mLogger.log(PermissionsLogger.EVENT_REQUEST_PERMISSIONS, new String[]{"p1", "p2"});
+        mLogger.log(PermissionsLogger.EVENT_RESULT, "p1", 1);
+
+        assertEquals(2, mPrinted.size());
+        assertEquals("requestPermissionsFromFragment p1, p2", mPrinted.get(0));
+        assertEquals("onRequestPermissionsResult p1 granted", mPrinted.get(1));
+    }
+
+    @Test
+    public void buffer_keepsLastEvents() {
+        mLogger.setBufferSize(2);
+
+        mLogger.log(PermissionsLogger.EVENT_REQUESTING, "p1");
+        mLogger.log(PermissionsLogger.EVENT_REQUESTING, "p2");
+        mLogger.log(PermissionsLogger.EVENT_REQUESTING, "p3");
+
+        String[] lines = mLogger.dump().split("\n");
+        assertTrue(mPrinted.isEmpty());
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith("Requesting permission p2"));
+        assertTrue(lines[1].endsWith("Requesting permission p3"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void buffer_negativeSize() {
+        mLogger.setBufferSize(-1);
+    }
+}
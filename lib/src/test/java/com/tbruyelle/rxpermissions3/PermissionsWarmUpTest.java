@@ -0,0 +1,63 @@
+package com.tbruyelle.rxpermissions3;
+
+import android.os.Build;
+
+import androidx.fragment.app.FragmentActivity;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.M)
+public class PermissionsWarmUpTest {
+
+    @Test
+    public void notInstalled_noFragment() {
+        FragmentActivity activity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+
+        assertNull(activity.getSupportFragmentManager().findFragmentByTag(RxPermissions.TAG));
+    }
+
+    @Test
+    public void install_attachesFragmentOnStart() {
+        RxPermissions.install(RuntimeEnvironment.application);
+
+        FragmentActivity activity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+
+        assertNotNull(activity.getSupportFragmentManager().findFragmentByTag(RxPermissions.TAG));
+    }
+
+    @Test
+    public void install_requestsReuseFragment() {
+        RxPermissions.install(RuntimeEnvironment.application);
+        FragmentActivity activity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+
+        PermissionBackend backend = new RxPermissions(activity).mBackend.get();
+
+        assertSame(activity.getSupportFragmentManager().findFragmentByTag(RxPermissions.TAG), backend);
+        assertEquals(1, activity.getSupportFragmentManager().getFragments().size());
+    }
+
+    @Test
+    public void install_activityResultBackend_noFragment() {
+        RxPermissions.install(RuntimeEnvironment.application, RxPermissions.BACKEND_ACTIVITY_RESULT);
+
+        FragmentActivity activity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+
+        assertNull(activity.getSupportFragmentManager().findFragmentByTag(RxPermissions.TAG));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void install_unknownBackend() {
+        RxPermissions.install(RuntimeEnvironment.application, 2);
+    }
+}
@@ -0,0 +1,52 @@
+package com.tbruyelle.rxpermissions3;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PublishOnceLazyTest {
+
+    @Test
+    public void get_createsOnce() throws InterruptedException {
+        final AtomicInteger creations = new AtomicInteger();
+        final Object value = new Object();
+        final PublishOnceLazy<Object> lazy = new PublishOnceLazy<Object>() {
+            @Override
+            Object create() {
+                creations.incrementAndGet();
+                return value;
+            }
+        };
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 1000; j++) {
+                        assertSame(value, lazy.get());
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, creations.get());
+        assertSame(value, lazy.get());
+    }
+}
@@ -0,0 +1,73 @@
+package com.tbruyelle.rxpermissions3;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RequestPlannerTest {
+
+    private static final String FINE_LOCATION = "android.permission.ACCESS_FINE_LOCATION";
+    private static final String BACKGROUND_LOCATION = "android.permission.ACCESS_BACKGROUND_LOCATION";
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String BODY_SENSORS = "android.permission.BODY_SENSORS";
+    private static final String BODY_SENSORS_BACKGROUND = "android.permission.BODY_SENSORS_BACKGROUND";
+    private static final int SDK_P = 28;
+    private static final int SDK_Q = 29;
+    private static final int SDK_S_V2 = 32;
+    private static final int SDK_TIRAMISU = 33;
+
+    @After
+    public void tearDown() {
+        RequestPlanner.resetDependencies();
+    }
+
+    @Test
+    public void plan_noDependency_singleStage() {
+        assertNull(RequestPlanner.plan(new String[]{CAMERA, BACKGROUND_LOCATION}, SDK_Q));
+    }
+
+    @Test
+    public void plan_chain_oneStagePerLevel() {
+        RequestPlanner.addDependency("a", BACKGROUND_LOCATION);
+
+        List<String[]> stages = RequestPlanner.plan(new String[]{"a", CAMERA, BACKGROUND_LOCATION, FINE_LOCATION}, SDK_Q);
+
+        assertEquals(3, stages.size());
+        assertArrayEquals(new String[]{CAMERA, FINE_LOCATION}, stages.get(0));
+        assertArrayEquals(new String[]{BACKGROUND_LOCATION}, stages.get(1));
+        assertArrayEquals(new String[]{"a"}, stages.get(2));
+    }
+
+    @Test
+    public void plan_backgroundLocation_stagedFromQ() {
+        String[] permissions = {BACKGROUND_LOCATION, FINE_LOCATION};
+
+        assertNull(RequestPlanner.plan(permissions, SDK_P));
+        assertEquals(2, RequestPlanner.plan(permissions, SDK_Q).size());
+    }
+
+    @Test
+    public void plan_bodySensorsBackground_stagedFromTiramisu() {
+        String[] permissions = {BODY_SENSORS_BACKGROUND, BODY_SENSORS};
+
+        assertNull(RequestPlanner.plan(permissions, SDK_S_V2));
+        assertEquals(2, RequestPlanner.plan(permissions, SDK_TIRAMISU).size());
+    }
+
+    @Test
+    public void plan_addedDependency_everySdk() {
+        RequestPlanner.addDependency("a", CAMERA);
+
+        assertEquals(2, RequestPlanner.plan(new String[]{"a", CAMERA}, SDK_P).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addDependency_cycle() {
+        RequestPlanner.addDependency(FINE_LOCATION, BACKGROUND_LOCATION);
+    }
+}
@@ -17,61 +17,125 @@ package com.tbruyelle.rxpermissions3;
 import android.Manifest;
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.content.Context;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
 
+import androidx.activity.result.ActivityResultRegistry;
+import androidx.activity.result.contract.ActivityResultContract;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.app.ActivityOptionsCompat;
 import androidx.fragment.app.FragmentActivity;
+import androidx.lifecycle.Lifecycle;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatchers;
+import org.robolectric.ParameterizedRobolectricTestRunner;
 import org.robolectric.Robolectric;
-import org.robolectric.RobolectricTestRunner;
 import org.robolectric.android.controller.ActivityController;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.reactivex.rxjava3.core.Flowable;
 import io.reactivex.rxjava3.core.Observable;
 import io.reactivex.rxjava3.observers.TestObserver;
+import io.reactivex.rxjava3.schedulers.TestScheduler;
 import io.reactivex.rxjava3.subjects.PublishSubject;
+import io.reactivex.rxjava3.subscribers.TestSubscriber;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
-@RunWith(RobolectricTestRunner.class)
+@RunWith(ParameterizedRobolectricTestRunner.class)
 @Config(sdk = Build.VERSION_CODES.M)
 public class RxPermissionsTest {
 
+    @ParameterizedRobolectricTestRunner.Parameters(name = "backend={0}")
+    public static Collection<Object[]> backends() {
+        return Arrays.asList(new Object[][]{
+                {RxPermissions.BACKEND_FRAGMENT},
+                {RxPermissions.BACKEND_ACTIVITY_RESULT}
+        });
+    }
+
+    private final int mBackendType;
+
     private FragmentActivity mActivity;
 
     private RxPermissions mRxPermissions;
 
+    private PermissionBackend mBackend;
+
+    public RxPermissionsTest(int backendType) {
+        mBackendType = backendType;
+    }
+
     @Before
     public void setup() {
         ActivityController<FragmentActivity> activityController = Robolectric.buildActivity(FragmentActivity.class);
         mActivity = spy(activityController.setup().get());
-        mRxPermissions = spy(new RxPermissions(mActivity));
-        mRxPermissions.mRxPermissionsFragment = spy(mRxPermissions.mRxPermissionsFragment);
-        final RxPermissionsFragment rxPermissionsFragment = spy(mRxPermissions.mRxPermissionsFragment.get());
-        when(rxPermissionsFragment.getActivity()).thenReturn(mActivity);
-        when(mRxPermissions.mRxPermissionsFragment.get()).thenReturn(rxPermissionsFragment);
+        mRxPermissions = spy(new RxPermissions(mActivity, mBackendType));
+        mRxPermissions.mBackend = spy(mRxPermissions.mBackend);
+        if (mBackendType == RxPermissions.BACKEND_FRAGMENT) {
+            final RxPermissionsFragment rxPermissionsFragment = spy((RxPermissionsFragment) mRxPermissions.mBackend.get());
+            when(rxPermissionsFragment.getActivity()).thenReturn(mActivity);
+            mBackend = rxPermissionsFragment;
+        } else {
+            mBackend = spy(new ActivityResultPermissionBackend(mActivity, new TestActivityResultRegistry()));
+        }
+        when(mRxPermissions.mBackend.get()).thenReturn(mBackend);
         // Default deny all permissions
         doReturn(false).when(mRxPermissions).isGranted(anyString());
         // Default no revoked permissions
         doReturn(false).when(mRxPermissions).isRevoked(anyString());
     }
 
+    @After
+    public void tearDown() {
+        PermissionsTrace.setTracer(null);
+        RxPermissions.setOutcomeStore(null);
+    }
+
+    private void resumeHost() {
+        if (mBackend instanceof RxPermissionsFragment) {
+            ((RxPermissionsFragment) mBackend).onResume();
+        } else {
+            ((ActivityResultPermissionBackend) mBackend).onStateChanged(mActivity, Lifecycle.Event.ON_RESUME);
+        }
+    }
+
     private Observable<Object> trigger() {
         return Observable.just(RxPermissions.TRIGGER);
     }
@@ -350,7 +414,7 @@ public class RxPermissionsTest {
         sub.assertNoErrors();
         sub.assertValues(new Permission(permissions[0], true), new Permission(permissions[1], true));
         ArgumentCaptor<String[]> requestedPermissions = ArgumentCaptor.forClass(String[].class);
-        verify(mRxPermissions).requestPermissionsFromFragment(requestedPermissions.capture());
+        verify(mRxPermissions).requestPermissionsFromFragment(requestedPermissions.capture(), anyInt());
         assertEquals(1, requestedPermissions.getValue().length);
         assertEquals(Manifest.permission.READ_PHONE_STATE, requestedPermissions.getValue()[0]);
     }
@@ -371,7 +435,7 @@ public class RxPermissionsTest {
         sub.assertNoErrors();
         sub.assertValues(new Permission(permissions[0] + ", " + permissions[1], true));
         ArgumentCaptor<String[]> requestedPermissions = ArgumentCaptor.forClass(String[].class);
-        verify(mRxPermissions).requestPermissionsFromFragment(requestedPermissions.capture());
+        verify(mRxPermissions).requestPermissionsFromFragment(requestedPermissions.capture(), anyInt());
         assertEquals(1, requestedPermissions.getValue().length);
         assertEquals(Manifest.permission.READ_PHONE_STATE, requestedPermissions.getValue()[0]);
     }
@@ -648,4 +712,805 @@ public class RxPermissionsTest {
 
         assertFalse(revoked);
     }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void isGranted_cached() {
+        // unmock isGranted
+        doCallRealMethod().when(mRxPermissions).isGranted(anyString());
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        when(mActivity.checkSelfPermission("p")).thenReturn(PackageManager.PERMISSION_GRANTED);
+
+        mRxPermissions.isGranted("p");
+        boolean granted = mRxPermissions.isGranted("p");
+
+        assertTrue(granted);
+        verify(mActivity, times(1)).checkSelfPermission("p");
+        assertEquals(1, mRxPermissions.getStateCacheMissCount());
+        assertEquals(1, mRxPermissions.getStateCacheHitCount());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void isGranted_invalidated() {
+        // unmock isGranted
+        doCallRealMethod().when(mRxPermissions).isGranted(anyString());
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        when(mActivity.checkSelfPermission("p")).thenReturn(PackageManager.PERMISSION_DENIED);
+
+        boolean granted = mRxPermissions.isGranted("p");
+        when(mActivity.checkSelfPermission("p")).thenReturn(PackageManager.PERMISSION_GRANTED);
+        mRxPermissions.invalidate();
+        boolean grantedAfterInvalidate = mRxPermissions.isGranted("p");
+
+        assertFalse(granted);
+        assertTrue(grantedAfterInvalidate);
+        verify(mActivity, times(2)).checkSelfPermission("p");
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void isGranted_invalidatedByResult() {
+        // unmock isGranted
+        doCallRealMethod().when(mRxPermissions).isGranted(anyString());
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        when(mActivity.checkSelfPermission("p")).thenReturn(PackageManager.PERMISSION_DENIED);
+
+        mRxPermissions.isGranted("p");
+        mRxPermissions.onRequestPermissionsResult(new String[]{"p"}, new int[]{PackageManager.PERMISSION_GRANTED});
+        mRxPermissions.isGranted("p");
+
+        verify(mActivity, times(2)).checkSelfPermission("p");
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void coalescing_singleSystemRequest() {
+        ShadowLooper.pauseMainLooper();
+        mRxPermissions.setRequestCoalescingWindow(16);
+        TestObserver<Boolean> sub1 = new TestObserver<>();
+        TestObserver<Boolean> sub2 = new TestObserver<>();
+        String[] permissions = new String[]{Manifest.permission.CAMERA, Manifest.permission.READ_PHONE_STATE};
+
+        trigger().compose(mRxPermissions.ensure(permissions[0])).subscribe(sub1);
+        trigger().compose(mRxPermissions.ensure(permissions[1])).subscribe(sub2);
+        verify(mBackend, never()).dispatchRequestPermissions(ArgumentMatchers.<String[]>any());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        mRxPermissions.onRequestPermissionsResult(permissions,
+                new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_DENIED});
+
+        ArgumentCaptor<String[]> requestedPermissions = ArgumentCaptor.forClass(String[].class);
+        verify(mBackend).dispatchRequestPermissions(requestedPermissions.capture());
+        assertArrayEquals(permissions, requestedPermissions.getValue());
+        sub1.assertNoErrors();
+        sub1.assertValue(true);
+        sub2.assertNoErrors();
+        sub2.assertValue(false);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void dialogQueue_nextDialogAfterResult() {
+        TestObserver<Boolean> sub1 = new TestObserver<>();
+        TestObserver<Boolean> sub2 = new TestObserver<>();
+        String camera = Manifest.permission.CAMERA;
+        String phone = Manifest.permission.READ_PHONE_STATE;
+
+        trigger().compose(mRxPermissions.ensure(camera)).subscribe(sub1);
+        trigger().compose(mRxPermissions.ensure(phone)).subscribe(sub2);
+
+        verify(mBackend).dispatchRequestPermissions(new String[]{camera});
+        verify(mBackend, never()).dispatchRequestPermissions(new String[]{phone});
+        assertEquals(1, mRxPermissions.getQueuedDialogCount());
+        mRxPermissions.onRequestPermissionsResult(new String[]{camera}, new int[]{PackageManager.PERMISSION_GRANTED});
+        verify(mBackend).dispatchRequestPermissions(new String[]{phone});
+        assertEquals(0, mRxPermissions.getQueuedDialogCount());
+        assertEquals(0, mRxPermissions.getLongestDialogWaitMillis());
+        mRxPermissions.onRequestPermissionsResult(new String[]{phone}, new int[]{PackageManager.PERMISSION_GRANTED});
+        sub1.assertValue(true);
+        sub2.assertValue(true);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void dialogQueue_userInitiatedFirst() {
+        String camera = Manifest.permission.CAMERA;
+        String location = Manifest.permission.ACCESS_FINE_LOCATION;
+        String phone = Manifest.permission.READ_PHONE_STATE;
+
+        trigger().compose(mRxPermissions.ensure(camera)).subscribe();
+        mRxPermissions.setRequestPriority(RxPermissions.PRIORITY_BACKGROUND);
+        trigger().compose(mRxPermissions.ensure(location)).subscribe();
+        mRxPermissions.setRequestPriority(RxPermissions.PRIORITY_USER_INITIATED);
+        trigger().compose(mRxPermissions.ensure(phone)).subscribe();
+        assertEquals(2, mRxPermissions.getQueuedDialogCount());
+        mRxPermissions.onRequestPermissionsResult(new String[]{camera}, new int[]{PackageManager.PERMISSION_GRANTED});
+
+        verify(mBackend).dispatchRequestPermissions(new String[]{phone});
+        verify(mBackend, never()).dispatchRequestPermissions(new String[]{location});
+        mRxPermissions.onRequestPermissionsResult(new String[]{phone}, new int[]{PackageManager.PERMISSION_GRANTED});
+        verify(mBackend).dispatchRequestPermissions(new String[]{location});
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void dialogQueue_priorityOfRequestWhenMade() {
+        String camera = Manifest.permission.CAMERA;
+        String location = Manifest.permission.ACCESS_FINE_LOCATION;
+        String phone = Manifest.permission.READ_PHONE_STATE;
+        mRxPermissions.setRequestPriority(RxPermissions.PRIORITY_BACKGROUND);
+        Observable<Boolean> backgroundRequest = mRxPermissions.request(location);
+        mRxPermissions.setRequestPriority(RxPermissions.PRIORITY_USER_INITIATED);
+
+        trigger().compose(mRxPermissions.ensure(camera)).subscribe();
+        backgroundRequest.subscribe();
+        trigger().compose(mRxPermissions.ensure(phone)).subscribe();
+        mRxPermissions.onRequestPermissionsResult(new String[]{camera}, new int[]{PackageManager.PERMISSION_GRANTED});
+
+        verify(mBackend).dispatchRequestPermissions(new String[]{phone});
+        verify(mBackend, never()).dispatchRequestPermissions(new String[]{location});
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void dialogQueue_samePriorityMerged() {
+        TestObserver<Boolean> sub1 = new TestObserver<>();
+        TestObserver<Boolean> sub2 = new TestObserver<>();
+        String camera = Manifest.permission.CAMERA;
+        String[] permissions = new String[]{Manifest.permission.READ_PHONE_STATE, Manifest.permission.ACCESS_FINE_LOCATION};
+
+        trigger().compose(mRxPermissions.ensure(camera)).subscribe();
+        trigger().compose(mRxPermissions.ensure(permissions[0])).subscribe(sub1);
+        trigger().compose(mRxPermissions.ensure(permissions[1])).subscribe(sub2);
+        assertEquals(1, mRxPermissions.getQueuedDialogCount());
+        mRxPermissions.onRequestPermissionsResult(new String[]{camera}, new int[]{PackageManager.PERMISSION_GRANTED});
+        mRxPermissions.onRequestPermissionsResult(permissions,
+                new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_DENIED});
+
+        verify(mBackend).dispatchRequestPermissions(permissions);
+        sub1.assertValue(true);
+        sub2.assertValue(false);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void dialogQueue_disposedRequestNotShown() {
+        TestObserver<Boolean> sub = new TestObserver<>();
+        String camera = Manifest.permission.CAMERA;
+        String[] permissions = new String[]{Manifest.permission.READ_PHONE_STATE, Manifest.permission.ACCESS_FINE_LOCATION};
+
+        trigger().compose(mRxPermissions.ensure(camera)).subscribe();
+        trigger().compose(mRxPermissions.ensure(permissions[0])).subscribe(sub);
+        trigger().compose(mRxPermissions.ensure(permissions[1])).subscribe();
+        sub.dispose();
+        mRxPermissions.onRequestPermissionsResult(new String[]{camera}, new int[]{PackageManager.PERMISSION_GRANTED});
+
+        verify(mBackend).dispatchRequestPermissions(new String[]{permissions[1]});
+        verify(mBackend, times(2)).dispatchRequestPermissions(ArgumentMatchers.<String[]>any());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void dialogQueue_nextDialogAfterTimeout() {
+        TestScheduler timeoutScheduler = new TestScheduler();
+        mRxPermissions.setRequestTimeout(30, TimeUnit.SECONDS, timeoutScheduler);
+        String camera = Manifest.permission.CAMERA;
+        String phone = Manifest.permission.READ_PHONE_STATE;
+
+        trigger().compose(mRxPermissions.ensure(camera)).subscribe(new TestObserver<Boolean>());
+        timeoutScheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+        trigger().compose(mRxPermissions.ensure(phone)).subscribe(new TestObserver<Boolean>());
+        verify(mBackend, never()).dispatchRequestPermissions(new String[]{phone});
+        timeoutScheduler.advanceTimeBy(20, TimeUnit.SECONDS);
+
+        verify(mBackend).dispatchRequestPermissions(new String[]{phone});
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void dialogQueue_lateResultOfTimedOutDialog() {
+        TestScheduler timeoutScheduler = new TestScheduler();
+        mRxPermissions.setRequestTimeout(30, TimeUnit.SECONDS, timeoutScheduler);
+        TestObserver<Boolean> sub = new TestObserver<>();
+        String camera = Manifest.permission.CAMERA;
+        String phone = Manifest.permission.READ_PHONE_STATE;
+        String location = Manifest.permission.ACCESS_FINE_LOCATION;
+
+        trigger().compose(mRxPermissions.ensure(camera)).subscribe(new TestObserver<Boolean>());
+        timeoutScheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+        trigger().compose(mRxPermissions.ensure(phone)).subscribe(sub);
+        timeoutScheduler.advanceTimeBy(20, TimeUnit.SECONDS);
+        // The result of the camera dialog arrives while the phone one is showing
+        mRxPermissions.onRequestPermissionsResult(new String[]{camera}, new int[]{PackageManager.PERMISSION_GRANTED});
+        trigger().compose(mRxPermissions.ensure(location)).subscribe();
+
+        sub.assertEmpty();
+        verify(mBackend, never()).dispatchRequestPermissions(new String[]{location});
+        mRxPermissions.onRequestPermissionsResult(new String[]{phone}, new int[]{PackageManager.PERMISSION_GRANTED});
+        sub.assertValue(true);
+        verify(mBackend).dispatchRequestPermissions(new String[]{location});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setRequestPriority_unknown() {
+        mRxPermissions.setRequestPriority(2);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void resultRetention_lateSubscriber() {
+        mRxPermissions.setResultRetention(1, TimeUnit.HOURS);
+        String permission = Manifest.permission.CAMERA;
+        Observable<Boolean> request = mRxPermissions.request(permission);
+        TestObserver<Boolean> sub = new TestObserver<>();
+        TestObserver<Boolean> lateSub = new TestObserver<>();
+
+        request.subscribe(sub);
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, new int[]{PackageManager.PERMISSION_DENIED});
+        request.subscribe(lateSub);
+
+        sub.assertValue(false);
+        lateSub.assertComplete();
+        lateSub.assertValue(false);
+        verify(mRxPermissions, times(1)).requestPermissionsFromFragment(ArgumentMatchers.<String[]>any(), anyInt());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void resultRetention_disabledByDefault() {
+        String permission = Manifest.permission.CAMERA;
+        Observable<Boolean> request = mRxPermissions.request(permission);
+        TestObserver<Boolean> sub = new TestObserver<>();
+        TestObserver<Boolean> lateSub = new TestObserver<>();
+
+        request.subscribe(sub);
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, new int[]{PackageManager.PERMISSION_DENIED});
+        request.subscribe(lateSub);
+
+        sub.assertValue(false);
+        lateSub.assertNoValues();
+        verify(mRxPermissions, times(2)).requestPermissionsFromFragment(ArgumentMatchers.<String[]>any(), anyInt());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void requestSingle_granted() {
+        TestObserver<Boolean> sub = new TestObserver<>();
+        String[] permissions = new String[]{Manifest.permission.READ_PHONE_STATE, Manifest.permission.CAMERA};
+        int[] result = new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_GRANTED};
+
+        mRxPermissions.requestSingle(permissions).subscribe(sub);
+        mRxPermissions.onRequestPermissionsResult(permissions, result);
+
+        sub.assertNoErrors();
+        sub.assertValue(true);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void requestEachCombinedSingle_oneDenied() {
+        TestObserver<Permission> sub = new TestObserver<>();
+        String[] permissions = new String[]{Manifest.permission.READ_PHONE_STATE, Manifest.permission.CAMERA};
+        int[] result = new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_DENIED};
+
+        mRxPermissions.requestEachCombinedSingle(permissions).subscribe(sub);
+        mRxPermissions.onRequestPermissionsResult(permissions, result);
+
+        sub.assertNoErrors();
+        sub.assertValue(new Permission(permissions[0] + ", " + permissions[1], false));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void requestCompletable_granted() {
+        TestObserver<Void> sub = new TestObserver<>();
+        String permission = Manifest.permission.CAMERA;
+        when(mRxPermissions.isGranted(permission)).thenReturn(true);
+
+        mRxPermissions.requestCompletable(permission).subscribe(sub);
+
+        sub.assertNoErrors();
+        sub.assertComplete();
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void requestCompletable_denied() {
+        TestObserver<Void> sub = new TestObserver<>();
+        String permission = Manifest.permission.CAMERA;
+        int[] result = new int[]{PackageManager.PERMISSION_DENIED};
+
+        mRxPermissions.requestCompletable(permission).subscribe(sub);
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, result);
+
+        sub.assertError(PermissionDeniedException.class);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void ensureFlowable_granted() {
+        TestSubscriber<Boolean> sub = new TestSubscriber<>();
+        String permission = Manifest.permission.CAMERA;
+        int[] result = new int[]{PackageManager.PERMISSION_GRANTED};
+
+        Flowable.just(RxPermissions.TRIGGER).compose(mRxPermissions.ensureFlowable(permission)).subscribe(sub);
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, result);
+
+        sub.assertNoErrors();
+        sub.assertValue(true);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void getGranted_permissionSet() {
+        doReturn(true).when(mRxPermissions).isGranted(Manifest.permission.CAMERA);
+        PermissionSet permissions = PermissionSet.of(Manifest.permission.CAMERA, Manifest.permission.READ_PHONE_STATE);
+
+        assertEquals(PermissionSet.of(Manifest.permission.CAMERA), mRxPermissions.getGranted(permissions));
+        assertFalse(mRxPermissions.isGranted(permissions));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void metrics_requestEvents() {
+        AggregatingPermissionsMetrics metrics = new AggregatingPermissionsMetrics();
+        mRxPermissions.setMetrics(metrics);
+        TestObserver<Boolean> sub1 = new TestObserver<>();
+        TestObserver<Boolean> sub2 = new TestObserver<>();
+        String permission = Manifest.permission.CAMERA;
+
+        mRxPermissions.request(permission).subscribe(sub1);
+        mRxPermissions.request(permission).subscribe(sub2);
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, new int[]{PackageManager.PERMISSION_GRANTED});
+
+        assertEquals(1, metrics.getSubjectCreatedCount());
+        assertEquals(1, metrics.getSubjectReusedCount());
+        assertEquals(1, metrics.getDialogCount());
+        assertEquals(1, metrics.getResultCount());
+        assertEquals(1, metrics.getDecisionLatency().getCount());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void metrics_checkEvents() {
+        // unmock isGranted
+        doCallRealMethod().when(mRxPermissions).isGranted(anyString());
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        when(mActivity.checkSelfPermission("p")).thenReturn(PackageManager.PERMISSION_GRANTED);
+        AggregatingPermissionsMetrics metrics = new AggregatingPermissionsMetrics();
+        mRxPermissions.setMetrics(metrics);
+
+        mRxPermissions.isGranted("p");
+        mRxPermissions.isGranted("p");
+
+        assertEquals(2, metrics.getCheckCount());
+        assertEquals(1, metrics.getCacheHitCount());
+        assertEquals(1, metrics.getSystemCheckCount());
+        assertEquals(2, metrics.getCheckLatency().getCount());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void tracing_requestSections() {
+        RecordingTracer tracer = new RecordingTracer();
+        PermissionsTrace.setTracer(tracer);
+        String permission = Manifest.permission.CAMERA;
+
+        mRxPermissions.request(permission).subscribe(new TestObserver<Boolean>());
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, new int[]{PackageManager.PERMISSION_GRANTED});
+
+        assertEquals(4, tracer.mEvents.size());
+        assertEquals("begin " + PermissionsTrace.SECTION_REQUEST_PERMISSIONS, tracer.mEvents.get(0));
+        assertTrue(tracer.mEvents.get(1).startsWith("beginAsync " + PermissionsTrace.SLICE_REQUEST));
+        assertEquals("end", tracer.mEvents.get(2));
+        // The async slice ends with the same id
+        assertEquals(tracer.mEvents.get(1).replace("beginAsync", "endAsync"), tracer.mEvents.get(3));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void tracing_isGrantedSection() {
+        // unmock isGranted
+        doCallRealMethod().when(mRxPermissions).isGranted(anyString());
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        RecordingTracer tracer = new RecordingTracer();
+        PermissionsTrace.setTracer(tracer);
+
+        mRxPermissions.isGranted("p");
+
+        assertEquals(Arrays.asList("begin " + PermissionsTrace.SECTION_IS_GRANTED, "end"), tracer.mEvents);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void tracing_disabled() {
+        RecordingTracer tracer = new RecordingTracer();
+        PermissionsTrace.setTracer(tracer);
+        RxPermissions.setTracing(false);
+        String permission = Manifest.permission.CAMERA;
+
+        mRxPermissions.request(permission).subscribe(new TestObserver<Boolean>());
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, new int[]{PackageManager.PERMISSION_GRANTED});
+
+        assertTrue(tracer.mEvents.isEmpty());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void checkScheduler_checksOnScheduler() {
+        TestScheduler checkScheduler = new TestScheduler();
+        mRxPermissions.setCheckScheduler(checkScheduler);
+        TestObserver<Boolean> sub = new TestObserver<>();
+        String[] permissions = new String[]{Manifest.permission.CAMERA, Manifest.permission.READ_PHONE_STATE};
+
+        mRxPermissions.request(permissions).subscribe(sub);
+        verify(mRxPermissions, never()).isGranted(anyString());
+        verify(mRxPermissions, never()).requestPermissionsFromFragment(ArgumentMatchers.<String[]>any(), anyInt());
+        checkScheduler.triggerActions();
+        mRxPermissions.onRequestPermissionsResult(permissions,
+                new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_GRANTED});
+
+        verify(mRxPermissions).isGranted(permissions[0]);
+        verify(mRxPermissions).isGranted(permissions[1]);
+        verify(mRxPermissions).requestPermissionsFromFragment(aryEq(permissions), anyInt());
+        sub.assertNoErrors();
+        sub.assertValue(true);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void request_fromManyThreads_requestedOnceOnMainThread() throws Exception {
+        final String permission = Manifest.permission.CAMERA;
+        final List<TestObserver<Boolean>> subs = new ArrayList<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            final TestObserver<Boolean> sub = new TestObserver<>();
+            subs.add(sub);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    trigger().compose(mRxPermissions.ensure(permission)).subscribe(sub);
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        verify(mRxPermissions, never()).requestPermissionsFromFragment(ArgumentMatchers.<String[]>any(), anyInt());
+        ShadowLooper.idleMainLooper();
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, new int[]{PackageManager.PERMISSION_GRANTED});
+
+        verify(mRxPermissions).requestPermissionsFromFragment(aryEq(new String[]{permission}), anyInt());
+        for (TestObserver<Boolean> sub : subs) {
+            sub.assertNoErrors();
+            sub.assertValue(true);
+        }
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void request_onMainThread_noHop() {
+        TestObserver<Boolean> sub = new TestObserver<>();
+        String permission = Manifest.permission.CAMERA;
+        when(mRxPermissions.isGranted(permission)).thenReturn(true);
+
+        trigger().compose(mRxPermissions.ensure(permission)).subscribe(sub);
+
+        sub.assertValue(true);
+        verify(mRxPermissions, never()).getRequestScheduler();
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void outcomeStore_recordsResults() {
+        PermissionOutcomeStore store = new PermissionOutcomeStore(mActivity,
+                mActivity.getSharedPreferences("outcomes", Context.MODE_PRIVATE));
+        RxPermissions.setOutcomeStore(store);
+        TestObserver<Permission> sub = new TestObserver<>();
+        String permission = Manifest.permission.CAMERA;
+
+        trigger().compose(mRxPermissions.ensureEach(permission)).subscribe(sub);
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, new int[]{PackageManager.PERMISSION_DENIED});
+
+        PermissionOutcome outcome = store.getOutcome(permission);
+        assertNotNull(outcome);
+        assertFalse(outcome.granted);
+        assertTrue(outcome.neverAskAgain);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void requestTimeout_failsAndAsksAgain() {
+        TestScheduler timeoutScheduler = new TestScheduler();
+        mRxPermissions.setRequestTimeout(30, TimeUnit.SECONDS, timeoutScheduler);
+        TestObserver<Boolean> sub = new TestObserver<>();
+        String permission = Manifest.permission.CAMERA;
+
+        trigger().compose(mRxPermissions.ensure(permission)).subscribe(sub);
+        timeoutScheduler.advanceTimeBy(29, TimeUnit.SECONDS);
+        sub.assertNoErrors();
+        timeoutScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        sub.assertError(TimeoutException.class);
+        trigger().compose(mRxPermissions.ensure(permission)).subscribe(new TestObserver<Boolean>());
+
+        verify(mRxPermissions, times(2)).requestPermissionsFromFragment(aryEq(new String[]{permission}), anyInt());
+        // The dialog of the timed out request doesn't hold the queue
+        verify(mBackend, times(2)).dispatchRequestPermissions(new String[]{permission});
+        assertEquals(0, mRxPermissions.getQueuedDialogCount());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void requestTimeout_resultInTime() {
+        TestScheduler timeoutScheduler = new TestScheduler();
+        mRxPermissions.setRequestTimeout(30, TimeUnit.SECONDS, timeoutScheduler);
+        TestObserver<Boolean> sub = new TestObserver<>();
+        String permission = Manifest.permission.CAMERA;
+
+        trigger().compose(mRxPermissions.ensure(permission)).subscribe(sub);
+        timeoutScheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, new int[]{PackageManager.PERMISSION_GRANTED});
+        timeoutScheduler.advanceTimeBy(30, TimeUnit.SECONDS);
+
+        sub.assertNoErrors();
+        sub.assertValue(true);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void dispose_lastSubscriber_asksAgain() {
+        String permission = Manifest.permission.CAMERA;
+        TestObserver<Boolean> sub = new TestObserver<>();
+
+        trigger().compose(mRxPermissions.ensure(permission)).subscribe(sub);
+        sub.dispose();
+        TestObserver<Boolean> sub2 = new TestObserver<>();
+        trigger().compose(mRxPermissions.ensure(permission)).subscribe(sub2);
+
+        verify(mRxPermissions, times(2)).requestPermissionsFromFragment(aryEq(new String[]{permission}), anyInt());
+        // The dialog of the disposed request is still showing, the new one waits for its result
+        verify(mBackend, times(1)).dispatchRequestPermissions(new String[]{permission});
+        assertEquals(1, mRxPermissions.getQueuedDialogCount());
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, new int[]{PackageManager.PERMISSION_DENIED});
+        sub2.assertNoValues();
+        verify(mBackend, times(2)).dispatchRequestPermissions(new String[]{permission});
+        assertEquals(0, mRxPermissions.getQueuedDialogCount());
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, new int[]{PackageManager.PERMISSION_GRANTED});
+        sub2.assertValue(true);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void dispose_otherSubscriber_keepsRequest() {
+        String permission = Manifest.permission.CAMERA;
+        TestObserver<Boolean> sub1 = new TestObserver<>();
+        TestObserver<Boolean> sub2 = new TestObserver<>();
+
+        trigger().compose(mRxPermissions.ensure(permission)).subscribe(sub1);
+        trigger().compose(mRxPermissions.ensure(permission)).subscribe(sub2);
+        sub1.dispose();
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, new int[]{PackageManager.PERMISSION_GRANTED});
+
+        verify(mRxPermissions, times(1)).requestPermissionsFromFragment(ArgumentMatchers.<String[]>any(), anyInt());
+        verify(mBackend, times(1)).dispatchRequestPermissions(ArgumentMatchers.<String[]>any());
+        sub2.assertValue(true);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void emptyResult_deniedAndAsksAgain() {
+        String[] permissions = new String[]{Manifest.permission.CAMERA, Manifest.permission.READ_PHONE_STATE};
+        TestObserver<Boolean> sub = new TestObserver<>();
+
+        trigger().compose(mRxPermissions.ensure(permissions)).subscribe(sub);
+        // The dialog was interrupted
+        mRxPermissions.onRequestPermissionsResult(new String[0], new int[0]);
+        trigger().compose(mRxPermissions.ensure(permissions)).subscribe(new TestObserver<Boolean>());
+
+        sub.assertNoErrors();
+        sub.assertValue(false);
+        verify(mRxPermissions, times(2)).requestPermissionsFromFragment(aryEq(permissions), anyInt());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void partialResult_deliveredPerPermission() {
+        String[] permissions = new String[]{Manifest.permission.CAMERA, Manifest.permission.READ_PHONE_STATE};
+        TestObserver<Permission> sub = new TestObserver<>();
+
+        trigger().compose(mRxPermissions.ensureEach(permissions)).subscribe(sub);
+        mRxPermissions.onRequestPermissionsResult(new String[]{permissions[0]}, new int[]{PackageManager.PERMISSION_GRANTED});
+
+        sub.assertNoErrors();
+        sub.assertValueCount(2);
+        assertTrue(sub.values().get(0).granted);
+        assertEquals(permissions[1], sub.values().get(1).name);
+        assertFalse(sub.values().get(1).granted);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void unknownPermissionInResult_restDelivered() {
+        String permission = Manifest.permission.CAMERA;
+        TestObserver<Boolean> sub = new TestObserver<>();
+
+        trigger().compose(mRxPermissions.ensure(permission)).subscribe(sub);
+        mRxPermissions.onRequestPermissionsResult(new String[]{"unknown", permission},
+                new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_GRANTED});
+
+        sub.assertNoErrors();
+        sub.assertValue(true);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void resultScheduler_deliversOnScheduler() {
+        TestScheduler resultScheduler = new TestScheduler();
+        mRxPermissions.setResultScheduler(resultScheduler);
+        TestObserver<Boolean> sub = new TestObserver<>();
+        String permission = Manifest.permission.CAMERA;
+
+        mRxPermissions.request(permission).subscribe(sub);
+        mRxPermissions.onRequestPermissionsResult(new String[]{permission}, new int[]{PackageManager.PERMISSION_GRANTED});
+        sub.assertNoValues();
+        resultScheduler.triggerActions();
+
+        sub.assertNoErrors();
+        sub.assertValue(true);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void bulkPermissionIndex_singleQuery() throws Exception {
+        // unmock isGranted and isRevoked
+        doCallRealMethod().when(mRxPermissions).isGranted(anyString());
+        doCallRealMethod().when(mRxPermissions).isRevoked(anyString());
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.requestedPermissions = new String[]{Manifest.permission.CAMERA, Manifest.permission.READ_CONTACTS};
+        packageInfo.requestedPermissionsFlags = new int[]{PackageInfo.REQUESTED_PERMISSION_GRANTED, 0};
+        PackageManager pm = mock(PackageManager.class);
+        when(mActivity.getPackageManager()).thenReturn(pm);
+        when(pm.getPackageInfo(anyString(), eq(PackageManager.GET_PERMISSIONS))).thenReturn(packageInfo);
+        mRxPermissions.setBulkPermissionIndex(true);
+
+        assertTrue(mRxPermissions.isGranted(Manifest.permission.CAMERA));
+        assertFalse(mRxPermissions.isGranted(Manifest.permission.READ_CONTACTS));
+        // Not declared in the manifest
+        assertTrue(mRxPermissions.isRevoked(Manifest.permission.READ_SMS));
+
+        verify(pm, times(1)).getPackageInfo(anyString(), eq(PackageManager.GET_PERMISSIONS));
+        verify(mActivity, never()).checkSelfPermission(anyString());
+        verify(pm, never()).isPermissionRevokedByPolicy(anyString(), anyString());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void warmUp_snapshotServesChecks() throws Exception {
+        // unmock isGranted and isRevoked
+        doCallRealMethod().when(mRxPermissions).isGranted(anyString());
+        doCallRealMethod().when(mRxPermissions).isRevoked(anyString());
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.requestedPermissions = new String[]{Manifest.permission.CAMERA, Manifest.permission.READ_CONTACTS};
+        packageInfo.requestedPermissionsFlags = new int[]{PackageInfo.REQUESTED_PERMISSION_GRANTED, 0};
+        PackageManager pm = mock(PackageManager.class);
+        when(mActivity.getPackageManager()).thenReturn(pm);
+        when(pm.getPackageInfo(anyString(), eq(PackageManager.GET_PERMISSIONS))).thenReturn(packageInfo);
+
+        PendingRequestRegistry.get(mActivity).snapshotStates(mActivity);
+
+        assertTrue(mRxPermissions.isGranted(Manifest.permission.CAMERA));
+        assertFalse(mRxPermissions.isRevoked(Manifest.permission.CAMERA));
+        assertFalse(mRxPermissions.isGranted(Manifest.permission.READ_CONTACTS));
+        verify(mActivity, never()).checkSelfPermission(anyString());
+        verify(pm, never()).isPermissionRevokedByPolicy(anyString(), anyString());
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void bulkPermissionIndex_undeclaredDeniedWithoutDialog() throws Exception {
+        doCallRealMethod().when(mRxPermissions).isRevoked(anyString());
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        PackageManager pm = mock(PackageManager.class);
+        when(mActivity.getPackageManager()).thenReturn(pm);
+        when(pm.getPackageInfo(anyString(), eq(PackageManager.GET_PERMISSIONS))).thenReturn(new PackageInfo());
+        mRxPermissions.setBulkPermissionIndex(true);
+        TestObserver<Boolean> sub = new TestObserver<>();
+
+        mRxPermissions.request(Manifest.permission.CAMERA).subscribe(sub);
+
+        verify(mRxPermissions, never()).requestPermissionsFromFragment(ArgumentMatchers.<String[]>any(), anyInt());
+        sub.assertNoErrors();
+        sub.assertValue(false);
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void observe_currentStateThenChanges() {
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        String permission = Manifest.permission.CAMERA;
+        TestObserver<Permission> sub = new TestObserver<>();
+
+        mRxPermissions.observe(permission).subscribe(sub);
+        doReturn(true).when(mBackend).isGranted(permission);
+        resumeHost();
+        resumeHost();
+
+        sub.assertNoErrors();
+        sub.assertValues(new Permission(permission, false), new Permission(permission, true));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void observe_sharedPassForAllObservers() {
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        String[] permissions = new String[]{Manifest.permission.CAMERA, Manifest.permission.READ_PHONE_STATE};
+        TestObserver<Permission> sub1 = new TestObserver<>();
+        TestObserver<Permission> sub2 = new TestObserver<>();
+
+        mRxPermissions.observe(permissions[0]).subscribe(sub1);
+        mRxPermissions.observe(permissions).subscribe(sub2);
+        doReturn(false).when(mBackend).isGranted(permissions[0]);
+        doReturn(true).when(mBackend).isGranted(permissions[1]);
+        resumeHost();
+
+        // One check per observed permission, whatever the number of observers
+        verify(mBackend, times(1)).isGranted(permissions[0]);
+        verify(mBackend, times(1)).isGranted(permissions[1]);
+        sub1.assertValues(new Permission(permissions[0], false));
+        sub2.assertValues(new Permission(permissions[0], false), new Permission(permissions[1], false),
+                new Permission(permissions[1], true));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.M)
+    public void observe_disposedStopsChecking() {
+        doReturn(true).when(mRxPermissions).isMarshmallow();
+        String permission = Manifest.permission.CAMERA;
+
+        mRxPermissions.observe(permission).subscribe().dispose();
+        resumeHost();
+
+        verify(mBackend, never()).isGranted(permission);
+    }
+
+    private static class RecordingTracer implements PermissionsTrace.Tracer {
+        final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void beginSection(@NonNull String name) {
+            mEvents.add("begin " + name);
+        }
+
+        @Override
+        public void endSection() {
+            mEvents.add("end");
+        }
+
+        @Override
+        public void beginAsyncSection(@NonNull String name, int cookie) {
+            mEvents.add("beginAsync " + name + " " + cookie);
+        }
+
+        @Override
+        public void endAsyncSection(@NonNull String name, int cookie) {
+            mEvents.add("endAsync " + name + " " + cookie);
+        }
+    }
+
+    /**
+     * Registry which never shows the dialog, results are delivered by the tests.
+     */
+    private static class TestActivityResultRegistry extends ActivityResultRegistry {
+        @Override
+        public <I, O> void onLaunch(int requestCode, @NonNull ActivityResultContract<I, O> contract, I input, @Nullable ActivityOptionsCompat options) {
+        }
+    }
 }